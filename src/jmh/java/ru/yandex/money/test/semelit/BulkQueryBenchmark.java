@@ -0,0 +1,70 @@
+package ru.yandex.money.test.semelit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Подсчёт за час и сутки по тысячам статистик: последовательный обход против {@link EventStatQuery}
+ * Момент подсчёта на полчаса в прошлом, т.е. мимо текущих итогов, по агрегатам
+ * Статистики на минутных слотах, чтобы тысячи суточных колец помещались в куче
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BulkQueryBenchmark {
+    private final static int[] DURATIONS = {EventStat.SECONDS_IN_HOUR, EventStat.SECONDS_IN_24_HOURS};
+
+    @Param({"8000"})
+    int stats;
+
+    List<EventStat<Object>> list;
+    long stamp;
+
+    @Setup
+    public void setUp() {
+        list = new ArrayList<>(stats);
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < stats; i++) {
+            EventStat<Object> es = EventStat.builder().slotWidth(Duration.ofMinutes(1)).build();
+            for (int minute = 0; minute < 24 * 60; minute += 7) {
+                es.insertCountAt(i % 100 + 1, now - minute * 60_000L);
+            }
+            list.add(es);
+        }
+        stamp = now - 30 * 60_000L;
+    }
+
+    @Benchmark
+    public long[] sequential() {
+        final long[] result = new long[list.size() * DURATIONS.length];
+        for (int i = 0; i < list.size(); i++) {
+            for (int j = 0; j < DURATIONS.length; j++) {
+                result[i * DURATIONS.length + j] = list.get(i).countAt(DURATIONS[j], stamp);
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public long[] parallel() {
+        return EventStatQuery.countAt(list, DURATIONS, stamp, ForkJoinPool.commonPool());
+    }
+}
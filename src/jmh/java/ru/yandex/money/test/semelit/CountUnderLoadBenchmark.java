@@ -0,0 +1,85 @@
+package ru.yandex.money.test.semelit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время подсчёта за последние минуту, час и сутки, пока три потока непрерывно вставляют события
+ * Перед замером кольцо заполняется событиями за предыдущие сутки, чтобы подсчёт читал реальные слоты
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CountUnderLoadBenchmark {
+    private static final Object EVENT = new Object();
+
+    @State(Scope.Group)
+    public static class Loaded {
+        EventStat<Object> es;
+
+        @Setup
+        public void setUp() {
+            es = new EventStat<>();
+            final long now = System.currentTimeMillis();
+            for (int second = EventStat.SECONDS_IN_24_HOURS - 1; second >= 0; second--) {
+                es.insertCountAt(10, now - second * 1000L);
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("minute")
+    @GroupThreads(3)
+    public boolean minuteWriter(Loaded state) {
+        return state.es.insert(EVENT);
+    }
+
+    @Benchmark
+    @Group("minute")
+    @GroupThreads(1)
+    public long minuteReader(Loaded state) {
+        return state.es.countInLastMinute();
+    }
+
+    @Benchmark
+    @Group("hour")
+    @GroupThreads(3)
+    public boolean hourWriter(Loaded state) {
+        return state.es.insert(EVENT);
+    }
+
+    @Benchmark
+    @Group("hour")
+    @GroupThreads(1)
+    public long hourReader(Loaded state) {
+        return state.es.countInLastHour();
+    }
+
+    @Benchmark
+    @Group("day")
+    @GroupThreads(3)
+    public boolean dayWriter(Loaded state) {
+        return state.es.insert(EVENT);
+    }
+
+    @Benchmark
+    @Group("day")
+    @GroupThreads(1)
+    public long dayReader(Loaded state) {
+        return state.es.countInLastDay();
+    }
+}
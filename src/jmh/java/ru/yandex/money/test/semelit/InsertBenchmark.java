@@ -0,0 +1,64 @@
+package ru.yandex.money.test.semelit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность {@link EventStat#insert(Object)} при разном числе пишущих потоков,
+ * в обычном режиме и в режиме с полосами
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InsertBenchmark {
+    private static final Object EVENT = new Object();
+
+    @Param({"false", "true"})
+    public boolean striped;
+
+    private EventStat<Object> es;
+
+    @Setup
+    public void setUp() {
+        es = new EventStat<>(striped);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean insert1Thread() {
+        return es.insert(EVENT);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean insert4Threads() {
+        return es.insert(EVENT);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean insert16Threads() {
+        return es.insert(EVENT);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean insert64Threads() {
+        return es.insert(EVENT);
+    }
+}
@@ -0,0 +1,47 @@
+package ru.yandex.money.test.semelit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость {@link EventStat#insertAt(Object, long)}, когда каждое событие приходит после простоя в gapMillis
+ * Время вставки не должно зависеть от длины простоя
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LagRecoveryBenchmark {
+    private static final Object EVENT = new Object();
+
+    @Param({"1000", "60000", "3600000"})
+    public long gapMillis;
+
+    private EventStat<Object> es;
+    private long stamp;
+
+    @Setup
+    public void setUp() {
+        stamp = System.currentTimeMillis();
+        es = new EventStat<>(new ManualTimeSource(stamp));
+    }
+
+    @Benchmark
+    public boolean insertAfterGap() {
+        stamp += gapMillis;
+        return es.insertAt(EVENT, stamp);
+    }
+}
@@ -0,0 +1,67 @@
+package ru.yandex.money.test.semelit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Распределение времени вставки (p99, p99.99) в статистику с порогом, когда каждое событие приходит после простоя
+ * Без уборщика печать слотов за простой достаётся вставке, с уборщиком она делается вне замера,
+ * как её делал бы фоновый поток {@link SlotSweeper}
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QuietPeriodLatencyBenchmark {
+    private static final Object EVENT = new Object();
+
+    @Param({"60000", "3600000"})
+    public long gapMillis;
+
+    @Param({"false", "true"})
+    public boolean swept;
+
+    private ManualTimeSource clock;
+    private SlotSweeper sweeper;
+    private EventStat<Object> es;
+
+    @Setup
+    public void setUp() {
+        clock = new ManualTimeSource(System.currentTimeMillis());
+        sweeper = new SlotSweeper(Duration.ofDays(1)); //обходы только через sweepNow
+        es = EventStat.builder().timeSource(clock).sweeper(swept ? sweeper : null).build();
+        es.addThresholdListener(Duration.ofMinutes(1), Integer.MAX_VALUE, (window, threshold, count) -> { });
+    }
+
+    @Setup(Level.Invocation)
+    public void quietPeriod() {
+        clock.advance(gapMillis);
+        if (swept) sweeper.sweepNow();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sweeper.close();
+    }
+
+    @Benchmark
+    public boolean insertAfterQuietPeriod() {
+        return es.insert(EVENT);
+    }
+}
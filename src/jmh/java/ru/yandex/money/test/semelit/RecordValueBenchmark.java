@@ -0,0 +1,40 @@
+package ru.yandex.money.test.semelit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность {@link ValueStat#recordValue(long)} и стоимость запроса перцентиля за минуту
+ * Отсутствие выделений при записи проверяется запуском с -prof gc
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecordValueBenchmark {
+    private final ValueStat stat = new ValueStat();
+
+    @Benchmark
+    @Threads(4)
+    public boolean recordValue() {
+        return stat.recordValue(ThreadLocalRandom.current().nextInt(1_000_000));
+    }
+
+    @Benchmark
+    public long percentileInLastMinute() {
+        return stat.histogramInLastMinute().getValueAtPercentile(99);
+    }
+}
@@ -0,0 +1,25 @@
+package ru.yandex.money.test.semelit;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+/**
+ * Запуск {@link LoadHarness} из командной строки: ./gradlew replay [-PreplayArgs='путь/к/журналу кол-во-потоков']
+ * Без журнала воспроизводится синтетический профиль: час по 1000 событий в секунду, три часа простоя,
+ * пятиминутный всплеск по 10000 событий в секунду и полчаса по 200 событий в секунду
+ */
+public class ReplayDriver {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final TimestampLog log = args.length > 0 && !args[0].isEmpty()
+                ? TimestampLog.map(Paths.get(args[0]))
+                : TimestampLog.synthetic(System.currentTimeMillis(), 1,
+                        new TimestampLog.Segment(Duration.ofHours(1), 1000),
+                        new TimestampLog.Segment(Duration.ofHours(3), 0),
+                        new TimestampLog.Segment(Duration.ofMinutes(5), 10_000),
+                        new TimestampLog.Segment(Duration.ofMinutes(30), 200));
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        System.out.print(LoadHarness.replay(log, threads, EventStat.builder()));
+    }
+}
@@ -0,0 +1,56 @@
+package ru.yandex.money.test.semelit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время выгрузки набора метрик в буфер; с -prof gc видно, что выгрузка не создаёт мусора
+ * Статистики на минутных слотах, чтобы тысячи суточных колец помещались в куче
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScrapeBenchmark {
+    @Param({"5000"})
+    int metrics;
+
+    PrometheusExporter exporter;
+    ByteBuffer buffer;
+
+    @Setup
+    public void setUp() {
+        exporter = new PrometheusExporter();
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < metrics; i++) {
+            EventStat<Object> es = EventStat.builder().slotWidth(Duration.ofMinutes(1)).build();
+            for (int minute = 0; minute < 24 * 60; minute += 7) {
+                es.insertCountAt(i % 100 + 1, now - minute * 60_000L);
+            }
+            exporter.register("metric_" + i, es);
+        }
+        buffer = ByteBuffer.allocateDirect(exporter.maxLength());
+    }
+
+    @Benchmark
+    public ByteBuffer scrape() {
+        buffer.clear();
+        exporter.writeTo(buffer);
+        return buffer;
+    }
+}
@@ -0,0 +1,160 @@
+package ru.yandex.money.test.semelit;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Кольцо, которое начинается с маленькой разреженной таблицы (период -> счётчик с открытой адресацией)
+ * и по мере заполнения переезжает в таблицу вдвое больше, а затем в плотное кольцо {@link DenseSlotRing}
+ * Для редких событий память пропорциональна числу периодов с событиями, а не длине кольца
+ *
+ * Запись в таблицу без блокировок. Переезд выполняется под монитором кольца один раз на каждое удвоение:
+ * переносимый слот атомарно заменяется меткой {@link #MOVED}, поэтому ни одна вставка не теряется
+ * Читатели во время переезда могут кратковременно не увидеть ещё не перенесённые события
+ *
+ * Слот таблицы устроен как слот плотного кольца того же уровня (см. {@link SlotLayout}), только без печати,
+ * поэтому переезд не меняет предел счётчика, а вставка, которая переполнила бы счётчик, отклоняется сразу
+ */
+final class AdaptiveSlotRing extends SlotRing {
+    private final static int INITIAL_CAPACITY = 8;
+    private final static int MAX_PROBES = 8;
+    private final static long MOVED = -1L; //печать в таблице не ставится, поэтому такого слота не бывает
+
+    /*
+     * Результаты вставки в таблицу
+     */
+    private final static int ADDED = 0;
+    private final static int FULL = 1;
+    private final static int OVERFLOW = 2;
+
+    private final int length;
+    private final SlotLayout layout;
+    private volatile SlotRing current;
+
+    AdaptiveSlotRing(int length, SlotLayout layout) {
+        this.length = length;
+        this.layout = layout;
+        this.current = INITIAL_CAPACITY * 2 > length ? new DenseSlotRing(length, layout) : new SparseTable(INITIAL_CAPACITY, length, layout);
+    }
+
+    @Override
+    boolean add(long period, long delta) {
+        for (;;) {
+            final SlotRing ring = current;
+            if (!(ring instanceof SparseTable)) return ring.add(period, delta);
+            final int result = ((SparseTable) ring).tryAdd(period, delta);
+            if (result != FULL) return result == ADDED;
+            grow((SparseTable) ring);
+        }
+    }
+
+    @Override
+    long count(long period) {
+        return current.count(period);
+    }
+
+    /**
+     * Переносит заполненную таблицу в следующую по размеру либо в плотное кольцо,
+     * если таблица заняла бы больше половины плотного кольца
+     */
+    private synchronized void grow(SparseTable table) {
+        if (current != table) return; //уже перенесли, пока ждали монитор
+
+        final long[] moved = new long[table.slots.length()];
+        int movedCount = 0;
+        for (int index = 0; index < table.slots.length(); index++) {
+            final long slot = table.slots.getAndSet(index, MOVED);
+            if (layout.countIn(slot) > 0) {
+                moved[movedCount++] = slot;
+            }
+        }
+
+        int capacity = table.slots.length() * 2;
+        SlotRing next;
+        do { //из-за ограничения проб переносимые слоты могут не уместиться, тогда берём таблицу ещё больше
+            next = capacity * 2 > length ? new DenseSlotRing(length, layout) : new SparseTable(capacity, length, layout);
+            capacity *= 2;
+        } while (!fill(next, moved, movedCount));
+        current = next;
+    }
+
+    private boolean fill(SlotRing ring, long[] slots, int size) {
+        for (int i = 0; i < size; i++) {
+            //плотное кольцо отказывает только для слотов, вытесненных более поздним периодом, их не жалко
+            if (!ring.add(layout.periodIn(slots[i]), layout.countIn(slots[i])) && ring instanceof SparseTable) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Таблица с открытой адресацией и ограниченным числом проб
+     * Слот свободен, если он пустой либо его период вышел за длину кольца относительно вставляемого
+     * Одновременные вставки нового периода могут занять два слота под один период, поэтому подсчёт суммирует все совпадения
+     */
+    private static final class SparseTable extends SlotRing {
+        private final AtomicLongArray slots;
+        private final int mask;
+        private final int length;
+        private final SlotLayout layout;
+
+        SparseTable(int capacity, int length, SlotLayout layout) {
+            this.slots = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+            this.length = length;
+            this.layout = layout;
+        }
+
+        @Override
+        boolean add(long period, long delta) {
+            return tryAdd(period, delta) == ADDED;
+        }
+
+        /**
+         * @return {@link #FULL}, если таблица заполнена или уже переносится,
+         * {@link #OVERFLOW}, если счётчик слота переполнился бы
+         */
+        int tryAdd(long period, long delta) {
+            final int start = hash(period);
+            for (;;) {
+                int free = -1;
+                long freeSlot = 0;
+                boolean retry = false;
+                for (int probe = 0; probe < MAX_PROBES && probe <= mask; probe++) {
+                    final int index = (start + probe) & mask;
+                    final long slot = slots.get(index);
+                    if (slot == MOVED) return FULL;
+                    if (layout.countIn(slot) > 0 && layout.periodIn(slot) == period) {
+                        if (layout.countIn(slot) + delta > layout.maxCount) return OVERFLOW;
+                        if (slots.compareAndSet(index, slot, slot + delta)) return ADDED;
+                        retry = true;
+                        break;
+                    }
+                    if (free < 0 && (layout.countIn(slot) == 0 || period - layout.periodIn(slot) >= length)) {
+                        free = index;
+                        freeSlot = slot;
+                    }
+                }
+                if (retry) continue;
+                if (free < 0) return FULL;
+                if (delta > layout.maxCount) return OVERFLOW;
+                if (slots.compareAndSet(free, freeSlot, layout.pack(period, delta))) return ADDED;
+            }
+        }
+
+        @Override
+        long count(long period) {
+            final int start = hash(period);
+            long result = 0;
+            for (int probe = 0; probe < MAX_PROBES && probe <= mask; probe++) {
+                final long slot = slots.get((start + probe) & mask);
+                if (slot != MOVED && layout.countIn(slot) > 0 && layout.periodIn(slot) == period) {
+                    result += layout.countIn(slot);
+                }
+            }
+            return result;
+        }
+
+        private int hash(long period) {
+            return (int) (period * 0x9E3779B97F4A7C15L >>> 32) & mask;
+        }
+    }
+}
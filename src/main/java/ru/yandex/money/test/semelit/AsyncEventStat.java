@@ -0,0 +1,256 @@
+package ru.yandex.money.test.semelit;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Асинхронная вставка в {@link EventStat} для производителей, которым нельзя конкурировать за общие атомики
+ * (например, потоков event loop): вставку в кольцо делает один поток-применитель
+ *
+ * Каждый производитель копит события текущего слота в своей ячейке: единственный писатель ячейки обновляет её
+ * упорядоченной записью (lazySet), без CAS и без общих с другими производителями cache line
+ * Когда производитель переходит в следующий слот, итог прошлого слота уходит в очередь применителю,
+ * а события в уже пройденные слоты (пришедшие не по порядку) уходят в очередь по одному
+ *
+ * Применитель раз в половину границы устаревания снимает прирост ячеек и разбирает очередь,
+ * поэтому подсчёт отстаёт от вставок не больше чем на границу устаревания; {@link #flush()} применяет всё сразу
+ * В кольцо применитель пишет пакетами: одна вставка на ячейку и слот вместо вставки на событие
+ *
+ * Очередь событий не по порядку ограничена: при переполнении событие либо отбрасывается ({@link Backpressure#DROP},
+ * см. {@link #getDroppedCount()}), либо производитель ждёт, пока применитель разберёт очередь ({@link Backpressure#BLOCK})
+ * Итоги слотов ограничением не затрагиваются: их не больше одного на производителя за слот
+ *
+ * Ячейка заводится на поток при первой вставке и живёт, пока жив этот объект, поэтому он рассчитан
+ * на постоянный набор долгоживущих потоков-производителей
+ *
+ * @param <T> Тип событий
+ */
+public final class AsyncEventStat<T> implements AutoCloseable {
+
+    public enum Backpressure {
+        /**
+         * Отбрасывать событие, если очередь переполнена
+         */
+        DROP,
+
+        /**
+         * Ждать, пока применитель разберёт очередь
+         */
+        BLOCK
+    }
+
+    /**
+     * Ячейка производителя: младшие 32 бита слота в старших 32 битах, накопленное с создания ячейки кол-во событий в младших
+     * Накопленное кол-во только растёт (по модулю 2^32), применитель вычитает из него уже применённое
+     * Слоты сравниваются по модулю 2^32, полный номер восстанавливается по ближайшему к текущему моменту
+     */
+    private static final class Cell extends AtomicLong {
+        /**
+         * Уже применённое накопленное кол-во, меняет только применитель
+         */
+        int applied;
+
+        /**
+         * Была ли уже вставка через ячейку, читает и меняет только производитель
+         */
+        boolean started;
+    }
+
+    /**
+     * Итог слота ячейки (cell != null, value это накопленное кол-во на конец слота)
+     * либо событие не по порядку (cell == null, value это кол-во событий)
+     */
+    private static final class Pending {
+        final Cell cell;
+        final long slot;
+        final int value;
+
+        Pending(Cell cell, long slot, int value) {
+            this.cell = cell;
+            this.slot = slot;
+            this.value = value;
+        }
+    }
+
+    private final EventStat<T> target;
+    private final int capacity;
+    private final Backpressure backpressure;
+    private final long halfStalenessNanos;
+
+    private final ThreadLocal<Cell> cells;
+    private final CopyOnWriteArrayList<Cell> allCells = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger outOfOrderPending = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+
+    private final Thread applier;
+    private volatile boolean running = true;
+
+    /**
+     * @param target       статистика, в которую применитель вставляет события, остальные писатели ей не нужны
+     * @param capacity     сколько событий не по порядку может ждать в очереди
+     * @param backpressure что делать с событием не по порядку, когда очередь полна
+     * @param maxStaleness на сколько подсчёт может отставать от вставок
+     */
+    public AsyncEventStat(EventStat<T> target, int capacity, Backpressure backpressure, Duration maxStaleness) {
+        if (capacity <= 0) throw new IllegalArgumentException("Ёмкость очереди должна быть положительной: " + capacity);
+        if (maxStaleness.isNegative() || maxStaleness.isZero()) {
+            throw new IllegalArgumentException("Граница устаревания должна быть положительной: " + maxStaleness);
+        }
+        this.target = target;
+        this.capacity = capacity;
+        this.backpressure = backpressure;
+        this.halfStalenessNanos = Math.max(1, maxStaleness.toNanos() / 2);
+        this.cells = ThreadLocal.withInitial(() -> {
+            Cell cell = new Cell();
+            allCells.add(cell);
+            return cell;
+        });
+        this.applier = new Thread(this::applyLoop, "event-stat-applier");
+        this.applier.setDaemon(true);
+        this.applier.start();
+    }
+
+    public boolean insert(T event) {
+        return insertAt(event, target.currentTimeMillis());
+    }
+
+    /**
+     * @return false, если событие отброшено из-за переполнения очереди;
+     * отклонённые самой статистикой события учитываются в её {@link EventStat#getRejectedCount()}
+     * @throws IllegalStateException после {@link #close()}
+     */
+    public boolean insertAt(T event, long currentStamp) {
+        if (!running) throw new IllegalStateException("Асинхронная вставка уже остановлена");
+
+        final long slot = target.slotOf(currentStamp);
+        final Cell cell = cells.get();
+        final long packed = cell.get();
+        final int cellSlot = (int) (packed >>> 32);
+        final int total = (int) packed;
+        final int ahead = (int) slot - cellSlot;
+        if (cell.started && ahead == 0) {
+            cell.lazySet(pack(slot, total + 1));
+        } else if (!cell.started || ahead > 0) {
+            //итог прошлого слота уходит в очередь до того, как ячейка покажет новый слот (см. applyPending)
+            if (cell.started) queue.add(new Pending(cell, slot - ahead, total));
+            cell.started = true;
+            cell.lazySet(pack(slot, total + 1));
+        } else {
+            return enqueueOutOfOrder(slot);
+        }
+        return true;
+    }
+
+    private boolean enqueueOutOfOrder(long slot) {
+        while (outOfOrderPending.incrementAndGet() > capacity) {
+            outOfOrderPending.decrementAndGet();
+            if (backpressure == Backpressure.DROP || !running) {
+                dropped.increment();
+                return false;
+            }
+            LockSupport.unpark(applier);
+            LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(10));
+        }
+        queue.add(new Pending(null, slot, 1));
+        return true;
+    }
+
+    public long countInLastMinute() {
+        return target.countInLastMinute();
+    }
+
+    public long countInLastHour() {
+        return target.countInLastHour();
+    }
+
+    public long countInLastDay() {
+        return target.countInLastDay();
+    }
+
+    /**
+     * @return кол-во событий, отброшенных из-за переполнения очереди
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Применяет все вставки, сделанные до вызова, не дожидаясь применителя
+     */
+    public void flush() {
+        applyPending();
+    }
+
+    /**
+     * Останавливает применителя и применяет оставшиеся вставки
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(applier);
+        try {
+            applier.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        applyPending();
+    }
+
+    private void applyLoop() {
+        while (running) {
+            LockSupport.parkNanos(this, halfStalenessNanos);
+            applyPending();
+        }
+    }
+
+    /**
+     * Порядок важен: сначала снимаем ячейки, затем разбираем очередь и только потом применяем прирост ячеек
+     * Итог слота попадает в очередь раньше, чем ячейка покажет следующий слот, поэтому прирост снятой ячейки,
+     * оставшийся после итогов из очереди, целиком относится к слоту, который она показывала
+     */
+    private synchronized void applyPending() {
+        final Object[] snapshot = allCells.toArray();
+        final long[] values = new long[snapshot.length];
+        for (int i = 0; i < snapshot.length; i++) {
+            values[i] = ((Cell) snapshot[i]).get();
+        }
+
+        for (Pending pending; (pending = queue.poll()) != null; ) {
+            if (pending.cell == null) {
+                outOfOrderPending.decrementAndGet();
+                target.insertCountAt(pending.value, target.stampOf(pending.slot));
+            } else {
+                apply(pending.cell, pending.slot, pending.value);
+            }
+        }
+
+        //ячейка показывает слот не дальше границы устаревания от текущего момента, ближайший такой слот и есть её слот
+        final long anchor = target.slotOf(target.currentTimeMillis());
+        for (int i = 0; i < snapshot.length; i++) {
+            final int cellSlot = (int) (values[i] >>> 32);
+            apply((Cell) snapshot[i], anchor + (cellSlot - (int) anchor), (int) values[i]);
+        }
+    }
+
+    /**
+     * Ячейка, через которую ещё не было вставок, не даёт прироста, поэтому её слот не важен
+     */
+    private void apply(Cell cell, long slot, int total) {
+        final int delta = total - cell.applied;
+        if (delta > 0) {
+            target.insertCountAt(delta, target.stampOf(slot));
+            cell.applied = total;
+        }
+    }
+
+    private static long pack(long slot, int total) {
+        return (slot << 32) | (total & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,49 @@
+package ru.yandex.money.test.semelit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Грубые часы: время обновляется фоновым потоком раз в заданный период (по умолчанию 1 мс),
+ * а чтение это обычное volatile чтение без системного вызова
+ * Точность ограничена периодом обновления, чего достаточно для слотов в 1 секунду
+ *
+ * Поток-демон запускается в конструкторе и останавливается в {@link #close()}
+ */
+public final class CachedTimeSource implements TimeSource, AutoCloseable {
+    private final long tickNanos;
+    private final Thread ticker;
+
+    private volatile long now = System.currentTimeMillis();
+    private volatile boolean running = true;
+
+    public CachedTimeSource() {
+        this(1, TimeUnit.MILLISECONDS);
+    }
+
+    public CachedTimeSource(long tick, TimeUnit unit) {
+        if (tick <= 0) throw new IllegalArgumentException("Период обновления должен быть положительным: " + tick);
+        this.tickNanos = unit.toNanos(tick);
+        this.ticker = new Thread(this::tick, "event-stat-clock");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    private void tick() {
+        while (running) {
+            now = System.currentTimeMillis();
+            LockSupport.parkNanos(this, tickNanos);
+        }
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(ticker);
+    }
+}
@@ -0,0 +1,25 @@
+package ru.yandex.money.test.semelit;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Плотное кольцо в куче
+ */
+final class DenseSlotRing extends IndexedSlotRing {
+    private final AtomicLongArray slots;
+
+    DenseSlotRing(int length, SlotLayout layout) {
+        super(length, layout);
+        slots = new AtomicLongArray(length);
+    }
+
+    @Override
+    long get(int index) {
+        return slots.get(index);
+    }
+
+    @Override
+    boolean compareAndSet(int index, long expect, long update) {
+        return slots.compareAndSet(index, expect, update);
+    }
+}
@@ -0,0 +1,163 @@
+package ru.yandex.money.test.semelit;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Оценка кол-ва различных событий (например, уникальных карт или пользователей) за последние минуту, час и сутки
+ *
+ * Для каждого периода ведётся скетч HyperLogLog из 2048 регистров (см. {@link SketchRing}) на трёх уровнях {@link SecondLevels},
+ * запрос за окно объединяет скетчи самого мелкого уровня, который его покрывает
+ *
+ * Стандартная ошибка оценки около 2.3% при любом кол-ве различных событий, малые кол-ва оцениваются почти точно
+ * Повторное событие не меняет скетч, т.е. оценка не зависит от того, сколько раз встретилось событие
+ *
+ * Вставка это CAS по одной ячейке каждого уровня, без блокировок и без выделения памяти,
+ * а если регистр уже не меньше нового значения, то только чтение
+ *
+ * Память фиксирована и не зависит от кол-ва различных событий: 64 + 64 + 32 скетча по 3.2 Кб, около 520 Кб
+ *
+ * @param <T> Тип событий, различие определяется хешем события
+ */
+public final class DistinctStat<T> {
+    private final SketchRing secondSketches = new SketchRing(SecondLevels.SECOND_ROWS);
+    private final SketchRing minuteSketches = new SketchRing(SecondLevels.MINUTE_ROWS);
+    private final SketchRing hourSketches = new SketchRing(SecondLevels.HOUR_ROWS);
+    private final TimeSource timeSource;
+    private final ToLongFunction<? super T> hash;
+
+    private final long offsetStamp;
+
+    /**
+     * Самая поздняя отметка времени среди вставленных событий, только растёт
+     */
+    private final AtomicLong lastInsertStamp;
+
+    public DistinctStat() {
+        this(TimeSource.SYSTEM);
+    }
+
+    /**
+     * Различие событий по {@link Object#hashCode()}, т.е. события с одинаковым хешем считаются одним
+     */
+    public DistinctStat(TimeSource timeSource) {
+        this(timeSource, Objects::hashCode);
+    }
+
+    /**
+     * @param hash хеш события; перемешивается перед использованием, но для больших кол-в различных событий
+     *             лучше 64-битный, иначе совпадения 32-битных хешей занижают оценку
+     */
+    public DistinctStat(TimeSource timeSource, ToLongFunction<? super T> hash) {
+        this.timeSource = timeSource;
+        this.hash = hash;
+        final long createdStamp = timeSource.currentTimeMillis();
+        this.offsetStamp = SecondLevels.offsetStampFor(createdStamp);
+        this.lastInsertStamp = new AtomicLong(createdStamp);
+    }
+
+    public boolean insert(T event) {
+        return insertAt(event, timeSource.currentTimeMillis());
+    }
+
+    /**
+     * Вставка события, произошедшего в момент currentStamp
+     * Уровень, который уже ушёл дальше периода события, его пропускает,
+     * т.е. запоздавшее на несколько минут событие попадёт только в часовые и суточные окна
+     * Первым пишется часовой уровень (см. {@link SecondLevels})
+     *
+     * @return false, если событие старше суток относительно самого позднего вставленного события
+     */
+    public boolean insertAt(T event, long currentStamp) {
+        final long last = lastInsertStamp.get();
+        if (currentStamp < last - EventStat.MILLIS_IN_24_HOURS) return false;
+
+        final long h = mix(hash.applyAsLong(event));
+        final int register = (int) (h >>> (Long.SIZE - SketchRing.PRECISION));
+        //единица в младшем бите ограничивает ранг, когда все значимые биты хеша нулевые
+        final int rank = Long.numberOfLeadingZeros(h << SketchRing.PRECISION | 1L << (SketchRing.PRECISION - 1)) + 1;
+        final int second = SecondLevels.secondOf(currentStamp, offsetStamp);
+        if (!hourSketches.add(SecondLevels.hourOf(second), register, rank)) return false;
+        minuteSketches.add(SecondLevels.minuteOf(second), register, rank);
+        secondSketches.add(second, register, rank);
+
+        long newest = last;
+        while (currentStamp > newest && !lastInsertStamp.compareAndSet(newest, currentStamp)) {
+            newest = lastInsertStamp.get();
+        }
+        return true;
+    }
+
+    /**
+     * Оценка кол-ва различных событий за последние durationInSeconds секунд на момент currentStamp
+     *
+     * @throws IllegalArgumentException если окно не положительное или больше 24 часов
+     */
+    public long distinctAt(int durationInSeconds, long currentStamp) {
+        if (durationInSeconds <= 0 || durationInSeconds > EventStat.SECONDS_IN_24_HOURS) {
+            throw new IllegalArgumentException("Окно должно быть в пределах (0, 24ч]: " + durationInSeconds);
+        }
+        final int to = SecondLevels.secondOf(currentStamp, offsetStamp);
+        final int from = to - durationInSeconds + 1;
+        final byte[] registers = new byte[SketchRing.REGISTERS];
+        if (durationInSeconds <= EventStat.SECONDS_IN_MINUTE) {
+            mergePeriods(secondSketches, from, to, registers);
+        } else if (durationInSeconds <= EventStat.SECONDS_IN_HOUR) {
+            mergePeriods(minuteSketches, SecondLevels.firstPeriodFrom(from, EventStat.SECONDS_IN_MINUTE), SecondLevels.minuteOf(to), registers);
+        } else {
+            mergePeriods(hourSketches, SecondLevels.firstPeriodFrom(from, EventStat.SECONDS_IN_HOUR), SecondLevels.hourOf(to), registers);
+        }
+        return estimate(registers);
+    }
+
+    public long distinctInLastMinute() {
+        return distinctAt(EventStat.SECONDS_IN_MINUTE, timeSource.currentTimeMillis());
+    }
+
+    public long distinctInLastHour() {
+        return distinctAt(EventStat.SECONDS_IN_HOUR, timeSource.currentTimeMillis());
+    }
+
+    public long distinctInLastDay() {
+        return distinctAt(EventStat.SECONDS_IN_24_HOURS, timeSource.currentTimeMillis());
+    }
+
+    private static void mergePeriods(SketchRing ring, int from, int to, byte[] registers) {
+        for (int period = from; period <= to; period++) {
+            ring.mergeInto(period, registers);
+        }
+    }
+
+    /**
+     * Оценка HyperLogLog с линейным подсчётом для малых кол-в
+     * Хеш 64-битный, поэтому поправка для больших кол-в не нужна
+     */
+    static long estimate(byte[] registers) {
+        final int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte rank : registers) {
+            sum += Double.longBitsToDouble((1023L - rank) << 52); //2^-rank
+            if (rank == 0) zeros++;
+        }
+        final double alpha = 0.7213 / (1 + 1.079 / m);
+        final double raw = alpha * m * m / sum;
+        if (raw <= 2.5 * m && zeros > 0) {
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+        return Math.round(raw);
+    }
+
+    /**
+     * Финальное перемешивание murmur3, чтобы старшие биты зависели от всех бит хеша
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
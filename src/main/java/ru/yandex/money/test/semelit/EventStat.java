@@ -1,30 +1,75 @@
 package ru.yandex.money.test.semelit;
 
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicIntegerArray;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  *
  * Реализация объекта для учёта однотипных событий на основе ring-buffer
- * Алгоритм строится на том, что время подделать трудно и события не могут приходить далеко в будущем (более секунды)
- * В противном случае, корректная работа не гарантируется
- * Хранит кол-во событий с разрешением в 1 секунду за последние 24 часа
- * Позволяет подсчитывать кол-во событий за последние 60 секунд, 60 минут либо 24 часа
- * Вставки и подсчёт за пределами 24 часов запрещены
+ * События могут приходить не по порядку: событие, опоздавшее относительно самого позднего вставленного
+ * не больше чем на допустимое опоздание (по умолчанию на всю глубину хранения), попадает в свой слот,
+ * а более старое отклоняется; подсчёт отвечает на любой момент, в том числе в прошлом
+ * Событие из далёкого будущего сдвигает границу хранения, поэтому время событий не должно убегать вперёд
+ * По умолчанию хранит кол-во событий с разрешением в 1 секунду за последние 24 часа,
+ * ширина слота и глубина хранения настраиваются через {@link #builder()} (например, 100 мс за минуту или минута за неделю)
+ * Позволяет подсчитывать кол-во событий за последние 60 секунд, 60 минут либо 24 часа,
+ * а также за произвольное окно в пределах хранения ({@link #countInLast(Duration)}) и между двумя моментами ({@link #countBetween(long, long)})
+ * Вставки за пределами хранения запрещены, подсчёт за более длинное окно ограничивается глубиной хранения
  *
- * Вставка события осуществляется в худшем случае за O(n), где n <= 86400
- * Очистка слотов за границами окна происходит при вставке
- * В среднем случае равномерного кол-ва событий (где разница между событиями в пределах 1-2 секунд) вставка за O(1)
- * Подсчёт кол-ва за O(n), где n <= 86400
+ * Каждый слот помечен номером своего периода (см. {@link SlotRing}), поэтому слоты прошлого оборота кольца
+ * сбрасываются первым писателем нового периода, а читатели их пропускают
+ * Вставка события осуществляется за O(1), в том числе после длительного простоя
+ * Помимо базовых слотов ведутся уровни агрегатов, слот каждого уровня покрывает 64 слота предыдущего
+ * Подсчёт кол-ва суммирует полные слоты старших уровней, а по младшим добирает только края,
+ * т.е. для суток по секундам читается не более 2*63 + 2*63 + 21 слотов вместо 86400
+ * Подсчёт за последние минуту, час и сутки на текущий момент ещё дешевле: он читает текущие итоги этих окон
+ * и пару последних слотов (см. {@link RunningTotals}); итоги пересчитываются при переходе в новый слот
+ * и после опоздавших вставок в уже запечатанные слоты, т.е. поток опоздавших событий стоит пересчёта на подсчёт
+ * Длины колец это степени двойки, позиция слота и номер периода старшего уровня вычисляются сдвигом и маской
  *
- * Память в худшем случае 2*O(m), где m = 86401, т.е. хранится массив счётчиков для каждой секунды в сутках
- * В среднем, для случаев без длительных простоев (менее суток) это O(m), где m = 86401
+ * Память O(m), где m это кол-во слотов в хранимом периоде, округлённое вверх до степени двойки,
+ * т.е. по умолчанию 131072 счётчика с меткой периода (long); уровни агрегатов добавляют около 1/64 от этого
+ * Для редких событий есть компактный режим ({@link Builder#compact(boolean)}): слоты лежат в разреженных таблицах,
+ * память пропорциональна числу слотов с событиями
+ * Слот кольца делится между номером слота и счётчиком по ширине слота: номеру достаётся столько бит,
+ * сколько нужно на срок службы в сто лет, остальное счётчику, т.е. 31 бит для секундных слотов и 43 для часовых
+ * Вставка, которая переполнила бы счётчик базового слота, отклоняется и учитывается в {@link #getRejectedCount()}
+ * Счётчики агрегатов шире на сдвиг периода уровня и вмещают полные базовые слоты, а подсчёты возвращают long,
+ * поэтому сумма за сутки не переполняется
  *
- * Потокобезопасен
- * В случае равномерной нагрузки без провалов (в пределах 1 секунды) можно считать lock-free
- * При случае с провалами происходит блокировка всех вставок на время устранения провалов
+ * Текущее время берётся из {@link TimeSource} (по умолчанию системные часы),
+ * а для событий со своими отметками времени есть {@link #insertAt(Object, long)} и {@link #countAt(int, long)}
+ *
+ * Для заранее сгруппированных событий есть пакетная вставка ({@link #insert(int)}, {@link #insertAll(Collection)}),
+ * которая добавляет весь пакет в слот одной атомарной операцией на уровень
+ *
+ * Кольца можно хранить в отображённом в память файле ({@link #mapped(Path)}), тогда статистика переживает перезапуск,
+ * а слоты, пропущенные пока процесс не работал, сбрасываются лениво, как и при обычном простое
+ *
+ * Для агрегации по нескольким узлам есть неизменяемые снимки ({@link #snapshot()}), выровненные по слотам от начала эпохи
+ *
+ * Вместо опроса подсчётов можно подписаться на ленту закрывшихся слотов ({@link SlotFeed})
+ *
+ * Для ограничения частоты есть {@link #tryAcquire(long, Duration)}, а для реакции на всплески пороги по окнам
+ * ({@link #addThresholdListener(Duration, long, ThresholdListener)}); оба работают на текущих итогах окон за O(1)
+ * (см. {@link RunningTotals})
+ *
+ * Потокобезопасен и lock-free: вставка это CAS по слоту каждого уровня, без общих блокировок,
+ * в том числе для событий, опоздавших больше чем на пару слотов (их учтёт в текущих итогах следующий подсчёт)
+ *
+ * Для высокой конкуренции есть режим с полосами (striped, по аналогии с LongAdder):
+ * вставки текущего слота расходятся по разнесённым в памяти ячейкам, выбираемым по пробе потока,
+ * и переносятся в кольцо, когда ячейка переключается на следующий слот
+ * Подсчёт учитывает ещё не перенесённые ячейки, поэтому итог остаётся точным
+ * (за исключением мгновения между переключением ячейки и записью её старого значения в кольцо)
+ * Если при переносе ячейки слот кольца не вмещает всех её событий, переносится сколько помещается,
+ * а остальные события учитываются в {@link #getRejectedCount()}
  *
  * @param <T> Любой тип событий
  */
@@ -36,95 +81,822 @@ public final class EventStat<T> {
     public final static long MILLIS_IN_HOUR = SECONDS_IN_HOUR * 1000;
     public final static long MILLIS_IN_24_HOURS = SECONDS_IN_24_HOURS * 1000;
 
-    private final static int SLOTS = SECONDS_IN_24_HOURS + 1; //на один больше для полных 24 часов
+    private final static long DEFAULT_SLOT_MILLIS = 1000;
+    private final static int DEFAULT_RETENTION_SLOTS = SECONDS_IN_24_HOURS;
+    private final static int MAX_RETENTION_SLOTS = 1 << 24;
+    final static int FANOUT_SHIFT = 6; //слот уровня агрегатов покрывает 64 слота предыдущего уровня
+    private final static int FANOUT = 1 << FANOUT_SHIFT;
+
+    /**
+     * Срок службы статистики: номер базового слота помещается в свои биты сто лет после создания
+     */
+    final static long LIFETIME_MILLIS = 36525 * MILLIS_IN_24_HOURS;
+
+    private final static int MAX_STRIPES = 64;
+    private final static int STRIPE_PADDING = 16; //128 байт между ячейками, чтобы соседние полосы не делили cache line
+    private final static ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(() -> new int[] {ThreadLocalRandom.current().nextInt() | 1});
+
+    /**
+     * Базовое кольцо и уровни агрегатов над ним, период уровня level это номер базового слота, сдвинутый на level * 6
+     */
+    private final SlotRing[] levels;
+    private final long slotMillis;
+    private final int retentionSlots;
+
+    /**
+     * Самый поздний базовый слот, номер которого помещается в слот кольца (см. {@link #periodBits(long, int)})
+     */
+    private final long maxSlot;
+
+    /**
+     * Раскладка базового слота, ей же упакованы ячейки полос
+     */
+    private final SlotLayout baseLayout;
 
-    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+    /**
+     * Насколько событие может опоздать относительно самого позднего вставленного, не больше глубины хранения
+     */
+    private final long allowedLatenessMillis;
+    private final TimeSource timeSource;
+    private final long offsetStamp;
 
-    private AtomicIntegerArray fullSecondSlots = new AtomicIntegerArray(new int[SLOTS]);
-    private volatile long offsetStamp = System.currentTimeMillis();
-    private AtomicInteger clearMark = new AtomicInteger(0);
+    /**
+     * Самая поздняя отметка времени среди вставленных событий, только растёт
+     */
+    private final AtomicLong lastInsertStamp;
 
-    private volatile long lastInsertStamp = offsetStamp;
+    /**
+     * Файловое хранилище колец, null для колец в куче
+     */
+    private final MappedEventStore store;
+
+    /**
+     * Текущие итоги окон для {@link #tryAcquire(long, Duration)} и порогов, null для адаптивных колец
+     */
+    private final RunningTotals totals;
+
+    /**
+     * Кол-во отклонённых вставок, меняется только на медленном пути
+     */
+    private final LongAdder rejectedInserts = new LongAdder();
+
+    /**
+     * Внутренние счётчики пути вставки, null если учёт выключен
+     */
+    private final InsertStats stats;
+
+    /**
+     * Ячейки текущего слота для режима с полосами, null в обычном режиме
+     * Упакованы как базовый слот: номер слота в старших битах, кол-во событий в младших, печати нет
+     */
+    private final AtomicLongArray stripes;
+    private final int stripeMask;
+
+    public EventStat() {
+        this(TimeSource.SYSTEM, false);
+    }
+
+    /**
+     * @param striped включает режим с полосами для вставок под высокой конкуренцией
+     */
+    public EventStat(boolean striped) {
+        this(TimeSource.SYSTEM, striped);
+    }
+
+    public EventStat(TimeSource timeSource) {
+        this(timeSource, false);
+    }
+
+    /**
+     * @param timeSource источник текущего времени для {@link #insert(Object)} и подсчёта за последние минуту, час, день
+     * @param striped включает режим с полосами для вставок под высокой конкуренцией
+     */
+    public EventStat(TimeSource timeSource, boolean striped) {
+        this(timeSource, striped, false);
+    }
+
+    /**
+     * @param adaptive хранить слоты в разреженных таблицах, которые переходят в плотные кольца по мере заполнения
+     *                 (см. {@link AdaptiveSlotRing}), используется реестром {@link EventStatRegistry} для редких ключей
+     */
+    EventStat(TimeSource timeSource, boolean striped, boolean adaptive) {
+        this(timeSource, striped, DEFAULT_SLOT_MILLIS, DEFAULT_RETENTION_SLOTS,
+                periodBits(DEFAULT_SLOT_MILLIS, DEFAULT_RETENTION_SLOTS), adaptive,
+                timeSource.currentTimeMillis(), false, DEFAULT_RETENTION_SLOTS * DEFAULT_SLOT_MILLIS);
+    }
+
+    private EventStat(TimeSource timeSource, boolean striped, int retentionSlots, MappedEventStore store,
+                      boolean instrumented, long allowedLatenessMillis) {
+        this(timeSource, striped, store.slotMillis(), retentionSlots, store.periodBits(), store.levels(),
+                store.lastInsertStamp(), store, instrumented, allowedLatenessMillis);
+    }
+
+    private EventStat(TimeSource timeSource, boolean striped, long slotMillis, int retentionSlots, int periodBits,
+                      boolean adaptive, long createdStamp, boolean instrumented, long allowedLatenessMillis) {
+        this(timeSource, striped, slotMillis, retentionSlots, periodBits, rings(retentionSlots, periodBits, adaptive),
+                createdStamp, null, instrumented, allowedLatenessMillis);
+    }
+
+    private EventStat(TimeSource timeSource, boolean striped, long slotMillis, int retentionSlots, int periodBits,
+                      SlotRing[] levels, long createdStamp, MappedEventStore store,
+                      boolean instrumented, long allowedLatenessMillis) {
+        this.stats = instrumented ? new InsertStats(rejectedInserts) : null;
+        if (stats != null) {
+            for (SlotRing ring : levels) {
+                ring.instrument(stats);
+            }
+        }
+        this.levels = levels;
+        this.slotMillis = slotMillis;
+        this.retentionSlots = retentionSlots;
+        this.maxSlot = (1L << periodBits) - 1;
+        this.baseLayout = layoutOf(periodBits, 0);
+        this.allowedLatenessMillis = allowedLatenessMillis;
+        this.timeSource = timeSource;
+        this.offsetStamp = store != null ? store.offsetStamp() : offsetStampFor(createdStamp, slotMillis, retentionSlots);
+        this.lastInsertStamp = new AtomicLong(store != null ? store.lastInsertStamp() : createdStamp);
+        this.store = store;
+        this.totals = levels[0] instanceof IndexedSlotRing
+                ? new RunningTotals(this, levels[0], getSlot(Math.max(timeSource.currentTimeMillis(), lastInsertStamp.get())), stats)
+                : null;
+        if (totals != null) {
+            //самое длинное окно первым, чтобы печать слотов прошла один раз
+            for (int duration : new int[] {SECONDS_IN_24_HOURS, SECONDS_IN_HOUR, SECONDS_IN_MINUTE}) {
+                totals.register(slotsIn(duration * 1000L));
+            }
+        }
+        if (striped) {
+            int stripeCount = Math.min(MAX_STRIPES, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+            stripes = new AtomicLongArray(stripeCount * STRIPE_PADDING);
+            stripeMask = stripeCount - 1;
+        } else {
+            stripes = null;
+            stripeMask = 0;
+        }
+    }
+
+    /**
+     * Нулевой слот отстоит от момента создания на всю глубину хранения, поэтому любое допустимое событие,
+     * в том числе опоздавшее относительно момента создания, попадает в неотрицательный период
+     * и не проигрывает пустым слотам нового кольца (они помечены периодом 0)
+     * Нулевой слот выровнен по слотам от начала эпохи, поэтому слоты статистик, созданных в разные моменты,
+     * совпадают со слотами эпохи и снимки складываются без сдвига (см. {@link EventStatSnapshot})
+     */
+    private static long offsetStampFor(long createdStamp, long slotMillis, int retentionSlots) {
+        return (Math.floorDiv(createdStamp, slotMillis) - retentionSlots) * slotMillis;
+    }
+
+    /**
+     * Сколько бит слота кольца отдать номеру базового слота, остальные достаются счётчику (см. {@link SlotLayout})
+     * Номеру нужно столько бит, чтобы хватило на срок службы, поэтому чем шире слот, тем шире и его счётчик:
+     * 32 бита на номер и 31 на кол-во событий для секундных слотов, 20 и 43 для часовых, 42 и 21 для миллисекундных
+     */
+    static int periodBits(long slotMillis, int retentionSlots) {
+        final long lastSlot = retentionSlots + LIFETIME_MILLIS / slotMillis;
+        return Long.SIZE - Long.numberOfLeadingZeros(lastSlot);
+    }
+
+    /**
+     * Раскладка слота уровня level: номер периода уровня короче номера базового слота на 6 * level бит,
+     * на столько же шире счётчик
+     */
+    static SlotLayout layoutOf(int periodBits, int level) {
+        return new SlotLayout(Long.SIZE - periodBits + level * FANOUT_SHIFT);
+    }
+
+    /**
+     * Длины колец базового уровня и уровней агрегатов, каждая это степень двойки,
+     * вмещающая все периоды уровня, которые задевает окно из retentionSlots + 1 базовых слотов
+     * Уровни добавляются, пока на предыдущем уровне в окно попадает больше 64 периодов
+     */
+    static int[] ringLengths(int retentionSlots) {
+        int levelCount = 1;
+        for (int periods = retentionSlots; periods > FANOUT; periods >>= FANOUT_SHIFT) {
+            levelCount++;
+        }
+        final int[] lengths = new int[levelCount];
+        for (int level = 0; level < levelCount; level++) {
+            lengths[level] = nextPowerOfTwo((retentionSlots >> (level * FANOUT_SHIFT)) + 2);
+        }
+        return lengths;
+    }
+
+    private static int nextPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    private static SlotRing[] rings(int retentionSlots, int periodBits, boolean adaptive) {
+        final int[] lengths = ringLengths(retentionSlots);
+        final SlotRing[] rings = new SlotRing[lengths.length];
+        for (int level = 0; level < lengths.length; level++) {
+            rings[level] = adaptive
+                    ? SlotRing.adaptive(lengths[level], layoutOf(periodBits, level))
+                    : SlotRing.dense(lengths[level], layoutOf(periodBits, level));
+        }
+        return rings;
+    }
+
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * @see #mapped(Path, TimeSource)
+     */
+    public static <T> EventStat<T> mapped(Path path) throws IOException {
+        return mapped(path, TimeSource.SYSTEM);
+    }
+
+    /**
+     * Статистика, кольца которой лежат в отображённом в память файле path
+     * Если файла нет, он создаётся, иначе продолжается накопленная в нём статистика
+     * Изменения попадают в файл средствами ОС, для гарантированной записи на диск есть {@link #flush()}
+     *
+     * Режим с полосами не поддерживается: не перенесённые из ячеек события терялись бы при остановке процесса
+     *
+     * @throws IOException если файл недоступен или его заголовок не совпадает с раскладкой колец
+     * @see Builder#buildMapped(Path)
+     */
+    public static <T> EventStat<T> mapped(Path path, TimeSource timeSource) throws IOException {
+        return EventStat.<T>builder().timeSource(timeSource).buildMapped(path);
+    }
+
+    /**
+     * Сбрасывает файловое хранилище на диск, для колец в куче ничего не делает
+     */
+    public void flush() {
+        if (store != null) store.flush();
+    }
 
     public boolean insert(T event) {
-        return insertAt(event, System.currentTimeMillis());
-    }
-
-    private final boolean insertAt(T event, long currentStamp) {
-        if (currentStamp < lastInsertStamp - MILLIS_IN_24_HOURS) return false; //вставки за границами окна не разрешаем
-        rwLock.readLock().lock();
-        try {
-            final int pos = getPos(currentStamp);
-            if (currentStamp - lastInsertStamp > 1000) {
-                //обнаружен лаг
-                //необходима очистка слотов, в которых скорее всего устаревшие события
-                //чистим основательно и блокируем все вставки на длительность очистки
-                //это плохо для случаев с резкими всплесками и полным отсутствием событий между такими всплесками
-
-                rwLock.readLock().unlock();
-                rwLock.writeLock().lock();
-                try {
-                    long lag = currentStamp - lastInsertStamp;
-                    if (lag > MILLIS_IN_24_HOURS) {
-                        //в случае такого простоя проще создать новый массив
-                        fullSecondSlots = new AtomicIntegerArray(new int[SLOTS]);
-                    } else if (lag > 1000) {
-                        //это означает, что мы ничего не вставляли, а соответственно и не очищали слоты
-                        //поэтому включаем в очистку текущую позицию, чтобы не дописывать в устаревшие данные
-                        int end = SLOTS + pos + 1;
-                        int start = end - ((int) (lag/1000));
-                        for (int i = start; i < end; i++) {
-                            fullSecondSlots.set(i % SLOTS, 0);
-                        }
-                        clearMark.set(pos); //необходимо установить в текущую позицию, иначе неравномерный лаг может сбить очистку
-                    }
-                    lastInsertStamp = currentStamp; //таким образом отмечаем для ожидающих write lock, что очистка выполнена
-                    rwLock.readLock().lock();
-                } finally {
-                    rwLock.writeLock().unlock();
+        return insertAt(event, timeSource.currentTimeMillis());
+    }
+
+    /**
+     * Пакетная вставка count событий, пришедших в текущий момент
+     * Для {@code EventStat<Integer>} вызов с примитивом выбирает именно этот метод, а не {@link #insert(Object)}
+     *
+     * @throws IllegalArgumentException если count отрицательный
+     */
+    public boolean insert(int count) {
+        return insertCountAt(count, timeSource.currentTimeMillis());
+    }
+
+    public boolean insertAll(Collection<? extends T> events) {
+        return insertCountAt(events.size(), timeSource.currentTimeMillis());
+    }
+
+    /**
+     * Пакетная вставка событий, пришедших в момент timestamp
+     */
+    public boolean insertAllAt(Collection<? extends T> events, long timestamp) {
+        return insertCountAt(events.size(), timestamp);
+    }
+
+    /**
+     * Пакетная вставка count событий, пришедших в момент currentStamp
+     * Весь пакет попадает в один слот, проверка границ окна выполняется один раз
+     *
+     * @return false, если событие опоздало больше допустимого, вышло за срок службы статистики
+     * либо счётчик слота переполнился бы (предел растёт с шириной слота, для секундных слотов это 2^31 - 1 событий),
+     * тогда пакет не учитывается целиком
+     * @throws IllegalArgumentException если count отрицательный
+     */
+    public boolean insertCountAt(int count, long currentStamp) {
+        if (count < 0) throw new IllegalArgumentException("Отрицательное кол-во событий: " + count);
+        if (count == 0) return true;
+
+        final long last = lastInsertStamp.get();
+        if (currentStamp < last - allowedLatenessMillis) { //вставки за границами окна и допустимого опоздания не разрешаем
+            rejectedInserts.increment();
+            return false;
+        }
+
+        final long slot = getSlot(currentStamp);
+        if (slot < 0 || slot > maxSlot || (stripes != null ? !insertStriped(slot, count) : !addToSlots(slot, count))) {
+            rejectedInserts.increment();
+            return false; //слот уже занят более поздним периодом либо переполнился бы
+        }
+        if (currentStamp > last) {
+            //сначала обычное чтение, чтобы не захватывать cache line под CAS на каждой вставке
+            long newest = last;
+            while (currentStamp > newest && !lastInsertStamp.compareAndSet(newest, currentStamp)) {
+                newest = lastInsertStamp.get();
+            }
+            if (store != null) store.advanceLastInsertStamp(currentStamp);
+        }
+        if (totals != null) totals.afterInsert(slot);
+        return true;
+    }
+
+    /**
+     * Вставка события, пришедшего в момент currentStamp
+     *
+     * @return false, если событие опоздало относительно самого позднего вставленного события больше допустимого
+     * (по умолчанию на глубину хранения, т.е. сутки)
+     */
+    public boolean insertAt(T event, long currentStamp) {
+        return insertCountAt(1, currentStamp);
+    }
+
+    /**
+     * @return false, если базовый слот уже занят более поздним периодом либо его счётчик переполнился бы
+     */
+    private boolean addToSlots(long slot, long delta) {
+        if (totals != null && slot <= totals.sealedUpTo()) return totals.addLate(slot, delta);
+        if (!levels[0].add(slot, delta)) {
+            //слот занят более поздним периодом, переполнен либо только что запечатан, тогда событие надо учесть в итогах
+            return totals != null && totals.addLate(slot, delta);
+        }
+        addToAggregates(slot, delta);
+        return true;
+    }
+
+    void addToAggregates(long slot, long delta) {
+        for (int level = 1; level < levels.length; level++) {
+            levels[level].add(slot >> (level * FANOUT_SHIFT), delta);
+        }
+    }
+
+    /**
+     * @return false, если событие пришлось писать сразу в кольцо и кольцо его отклонило
+     */
+    private boolean insertStriped(long slot, int count) {
+        final int[] probe = PROBE.get();
+        for (;;) {
+            final int index = (probe[0] & stripeMask) * STRIPE_PADDING;
+            final long cell = stripes.get(index);
+            final long cellSlot = baseLayout.periodIn(cell);
+            if (cellSlot == slot) {
+                //ячейка вмещает столько же, сколько слот кольца, пакет, который её переполнил бы, идёт сразу в кольцо
+                if (baseLayout.countIn(cell) + count > baseLayout.maxCount) return addToSlots(slot, count);
+                if (stripes.compareAndSet(index, cell, cell + count)) return true;
+            } else if (cellSlot < slot) {
+                //ячейка осталась от прошлого слота, забираем её себе и переносим накопленное в кольцо
+                if (stripes.compareAndSet(index, cell, baseLayout.pack(slot, count))) {
+                    if (stats != null) stats.stripeFold();
+                    final long lost = fold(cellSlot, baseLayout.countIn(cell));
+                    if (lost > 0) rejectedInserts.add(lost);
+                    return true;
                 }
+            } else {
+                //событие старше, чем ячейка, пишем сразу в кольцо
+                return addToSlots(slot, count);
             }
-            if (clearMark.compareAndSet(pos, (pos + 1) % SLOTS)) {
-                //для равномерной нагрузки очистка происходит в момент переключения текущего слота
-                fullSecondSlots.set(clearMark.get(), 0); //основываясь на предположении, что в будущем в пределах одной секунды никто не добавляет события
+            //ячейку одновременно меняет другой поток, переходим на другую полосу
+            int p = probe[0];
+            p ^= p << 13;
+            p ^= p >>> 17;
+            p ^= p << 5;
+            probe[0] = p;
+        }
+    }
+
+    /**
+     * Переносит события ячейки полосы в слот кольца; если слот не вмещает всех, переносит сколько помещается
+     *
+     * @return кол-во событий, которые не поместились, т.е. потеряны
+     */
+    private long fold(long slot, long count) {
+        long rest = count;
+        while (rest > 0 && !addToSlots(slot, rest)) {
+            final long room = baseLayout.maxCount - levels[0].count(slot);
+            //слот уже отдан под более поздний период либо полон
+            if (room <= 0 || room >= rest) return rest;
+            if (addToSlots(slot, room)) rest -= room;
+        }
+        return 0;
+    }
+
+    /**
+     * Кол-во событий в ещё не перенесённых в кольцо ячейках за слоты [from, to]
+     */
+    long countInStripes(long from, long to) {
+        if (stripes == null) return 0;
+
+        long result = 0;
+        for (int index = 0; index < stripes.length(); index += STRIPE_PADDING) {
+            final long cell = stripes.get(index);
+            final long cellSlot = baseLayout.periodIn(cell);
+            if (cellSlot >= from && cellSlot <= to) {
+                result += baseLayout.countIn(cell);
             }
-            fullSecondSlots.incrementAndGet(pos);
-            lastInsertStamp = currentStamp;
-            return true;
-        } finally {
-            rwLock.readLock().unlock();
         }
+        return result;
+    }
 
+    private final long getSlot(long currentStamp) {
+        return Math.floorDiv(currentStamp - offsetStamp, slotMillis);
     }
 
-    private final int getPos(long currentStamp) {
-        return (int) (currentStamp - offsetStamp)/1000 % SLOTS;
+    long slotOf(long currentStamp) {
+        return getSlot(currentStamp);
     }
 
-    private final int countInDuration(int durationInSeconds, long currentStamp) {
-        int secondsLate = (int) (currentStamp - lastInsertStamp)/1000;
-        if (secondsLate < 0) return -1; //не позволяем читать из прошлого
+    /**
+     * @return момент начала слота, т.е. отметка времени, которая попадает в этот слот
+     */
+    long stampOf(long slot) {
+        return offsetStamp + slot * slotMillis;
+    }
+
+    /**
+     * @return номер слота от начала эпохи, совпадающего со слотом кольца (см. {@link EventStatSnapshot});
+     * для файлов, созданных до выравнивания нулевого слота, это слот эпохи, в котором начинается слот кольца
+     */
+    long epochSlotOf(long slot) {
+        return Math.floorDiv(offsetStamp, slotMillis) + slot;
+    }
+
+    long currentTimeMillis() {
+        return timeSource.currentTimeMillis();
+    }
+
+    /**
+     * Продвигает текущие итоги до текущего момента, чтобы печать закрывшихся слотов не досталась
+     * первому подсчёту или вставке с порогами после простоя (см. {@link SlotSweeper})
+     */
+    void sweep() {
+        if (totals != null) totals.advance(getSlot(Math.max(timeSource.currentTimeMillis(), lastInsertStamp.get())));
+    }
+
+    /**
+     * @return кол-во слотов, покрывающих окно durationMillis, но не больше глубины хранения
+     */
+    private int slotsIn(long durationMillis) {
+        return (int) Math.min(-Math.floorDiv(-durationMillis, slotMillis), retentionSlots + 1);
+    }
+
+    /**
+     * Кол-во событий за последние durationInSeconds секунд на момент currentStamp
+     * Момент может быть и в прошлом: часть окна старше глубины хранения (относительно самого позднего
+     * вставленного события) уже не хранится и в подсчёт не попадает
+     */
+    public long countAt(int durationInSeconds, long currentStamp) {
+        //слоты между последней вставкой и текущим моментом помечены прошлым оборотом и не попадут в подсчёт
+        long to = getSlot(currentStamp);
+        int windowSlots = slotsIn(durationInSeconds * 1000L);
+        if (totals != null && isTotalled(durationInSeconds)
+                && currentStamp <= Math.max(timeSource.currentTimeMillis(), lastInsertStamp.get())) {
+            //итоги продвигаем только до текущего момента: печать будущих слотов сбросила бы ещё хранимые слоты
+            long count = totals.count(windowSlots, to);
+            if (count >= 0) return count;
+        }
+        return countInWindow(to, windowSlots);
+    }
+
+    private long countInWindow(long to, int windowSlots) {
+        //кольцо длиннее глубины хранения, поэтому более старые слоты отсекаем явно
+        long from = Math.max(to - windowSlots + 1, getSlot(lastInsertStamp.get()) - retentionSlots);
+        if (from > to) return 0;
+        return countInLevel(0, from, to) + countInStripes(from, to);
+    }
+
+    private static boolean isTotalled(int durationInSeconds) {
+        return durationInSeconds == SECONDS_IN_MINUTE || durationInSeconds == SECONDS_IN_HOUR || durationInSeconds == SECONDS_IN_24_HOURS;
+    }
+
+    /**
+     * Кол-во событий за произвольное окно, заканчивающееся текущим моментом
+     * Окно округляется вверх до целых слотов
+     *
+     * @throws IllegalArgumentException если окно не положительное или больше глубины хранения
+     */
+    public long countInLast(Duration window) {
+        final int windowSlots = windowSlots(window);
+        return countInWindow(getSlot(timeSource.currentTimeMillis()), windowSlots);
+    }
+
+    /**
+     * Вставляет событие, только если за окно window, заканчивающееся текущим моментом, было меньше limit событий
+     * Проверка и вставка атомарны относительно других вызовов tryAcquire (обычные вставки при этом не ограничиваются)
+     * Кол-во за окно берётся из текущих итогов за O(1), окно регистрируется при первом обращении
+     *
+     * @throws IllegalArgumentException если окно не положительное или больше глубины хранения
+     */
+    public boolean tryAcquire(long limit, Duration window) {
+        return totals().tryAcquire(windowSlots(window), limit, 1, timeSource.currentTimeMillis());
+    }
+
+    /**
+     * Регистрирует получателя, которого вставка уведомляет, когда кол-во событий за окно window достигает threshold
+     * Повторно получатель уведомляется только после того, как кол-во за окно опустится ниже порога
+     *
+     * @throws IllegalArgumentException если окно не положительное или больше глубины хранения
+     */
+    public void addThresholdListener(Duration window, long threshold, ThresholdListener listener) {
+        totals().addThreshold(windowSlots(window), window, threshold, listener);
+    }
+
+    RunningTotals totals() {
+        if (totals == null) throw new UnsupportedOperationException("Текущие итоги не ведутся для адаптивных колец");
+        return totals;
+    }
+
+    /**
+     * @return кол-во слотов окна, округлённое вверх
+     * @throws IllegalArgumentException если окно не положительное или больше глубины хранения
+     */
+    private int windowSlots(Duration window) {
+        if (window.isNegative() || window.isZero() || window.compareTo(getRetention()) > 0) {
+            throw new IllegalArgumentException("Окно должно быть в пределах (0, " + getRetention() + "]: " + window);
+        }
+        return slotsIn(window.toMillis() + (window.getNano() % 1_000_000 > 0 ? 1 : 0));
+    }
+
+    /**
+     * Кол-во событий с отметками времени от fromStamp до toStamp включительно с точностью до слота
+     * Учитываются только слоты, ещё хранящиеся в кольце, т.е. в пределах глубины хранения относительно последних вставок
+     *
+     * @throws IllegalArgumentException если fromStamp позже toStamp
+     */
+    public long countBetween(long fromStamp, long toStamp) {
+        if (fromStamp > toStamp) {
+            throw new IllegalArgumentException("Начало отрезка " + fromStamp + " позже его конца " + toStamp);
+        }
+        //кольцо длиннее глубины хранения, поэтому более старые слоты отсекаем явно
+        long from = Math.max(getSlot(fromStamp), getSlot(lastInsertStamp.get()) - retentionSlots);
+        long to = getSlot(toStamp);
+        if (from > to) return 0;
+        return countInLevel(0, from, to) + countInStripes(from, to);
+    }
+
+    /**
+     * Снимок базовых счётчиков за всю глубину хранения для объединения с другими узлами
+     */
+    public EventStatSnapshot snapshot() {
+        return snapshotOfSlots(retentionSlots);
+    }
+
+    /**
+     * Снимок базовых счётчиков за последние durationInSeconds секунд на текущий момент
+     *
+     * @throws IllegalArgumentException если окно не положительное или больше глубины хранения
+     */
+    public EventStatSnapshot snapshot(int durationInSeconds) {
+        if (durationInSeconds <= 0 || durationInSeconds * 1000L > retentionSlots * slotMillis) {
+            throw new IllegalArgumentException("Окно должно быть в пределах (0, " + getRetention() + "]: " + durationInSeconds);
+        }
+        return snapshotOfSlots(slotsIn(durationInSeconds * 1000L));
+    }
 
-        int result = 0;
-        int end = SLOTS + getPos(currentStamp) + 1;
-        int start = end + secondsLate - durationInSeconds;
-        if (start < end) { //в случае запоздания большего чем запрошенный период нет смысла считать
-            for (int i = start; i < end; i++) {
-                result += fullSecondSlots.get(i % SLOTS);
+    private EventStatSnapshot snapshotOfSlots(int slotCount) {
+        final long currentStamp = Math.max(timeSource.currentTimeMillis(), lastInsertStamp.get());
+        final long to = getSlot(currentStamp);
+        final long from = to - slotCount + 1;
+        final long[] counts = new long[slotCount];
+        for (long slot = from; slot <= to; slot++) {
+            counts[(int) (slot - from)] = levels[0].count(slot);
+        }
+        if (stripes != null) {
+            for (int index = 0; index < stripes.length(); index += STRIPE_PADDING) {
+                final long cell = stripes.get(index);
+                final long cellSlot = baseLayout.periodIn(cell);
+                if (cellSlot >= from && cellSlot <= to) {
+                    counts[(int) (cellSlot - from)] += baseLayout.countIn(cell);
+                }
             }
         }
+        final long firstSlot = epochSlotOf(from);
+        return EventStatSnapshot.of((firstSlot + slotCount - 1) * slotMillis, slotMillis, firstSlot, counts);
+    }
+
+    /**
+     * Кол-во событий в кольцах (без ячеек полос) за базовые слоты [from, to]
+     */
+    long countInSlots(long from, long to) {
+        return countInLevel(0, from, to);
+    }
+
+    /**
+     * Полные периоды следующего уровня внутри отрезка [from, to] уровня level берутся из агрегатов, края добираются слотами уровня
+     */
+    private long countInLevel(int level, long from, long to) {
+        if (level + 1 < levels.length) {
+            //арифметический сдвиг округляет вниз, в том числе для отрицательных номеров
+            final long firstUpper = (from + FANOUT - 1) >> FANOUT_SHIFT;
+            final long endUpper = (to + 1) >> FANOUT_SHIFT;
+            if (firstUpper < endUpper) {
+                return countInLevel(level + 1, firstUpper, endUpper - 1)
+                        + countInRing(levels[level], from, (firstUpper << FANOUT_SHIFT) - 1)
+                        + countInRing(levels[level], endUpper << FANOUT_SHIFT, to);
+            }
+        }
+        return countInRing(levels[level], from, to);
+    }
+
+    private static long countInRing(SlotRing ring, long from, long to) {
+        long result = 0;
+        for (long period = from; period <= to; period++) {
+            result += ring.count(period);
+        }
         return result;
     }
 
-    public int countInLastMinute() {
-        return countInDuration(SECONDS_IN_MINUTE, System.currentTimeMillis());
+    /**
+     * Подсчёт полным проходом по базовым слотам, без агрегатов
+     * Оставлен как эталон для сверки с {@link #countAt(int, long)}
+     */
+    long countInDurationByScan(int durationInSeconds, long currentStamp) {
+        long to = getSlot(currentStamp);
+        long from = Math.max(to - slotsIn(durationInSeconds * 1000L) + 1, getSlot(lastInsertStamp.get()) - retentionSlots);
+        if (from > to) return 0;
+        return countInRing(levels[0], from, to) + countInStripes(from, to);
     }
 
-    public int countInLastHour() {
-        return countInDuration(SECONDS_IN_HOUR, System.currentTimeMillis());
+    public long countInLastMinute() {
+        return countAt(SECONDS_IN_MINUTE, timeSource.currentTimeMillis());
     }
 
-    public int countInLastDay() {
-        return countInDuration(SECONDS_IN_24_HOURS, System.currentTimeMillis());
+    public long countInLastHour() {
+        return countAt(SECONDS_IN_HOUR, timeSource.currentTimeMillis());
+    }
+
+    public long countInLastDay() {
+        return countAt(SECONDS_IN_24_HOURS, timeSource.currentTimeMillis());
+    }
+
+    public Duration getSlotWidth() {
+        return Duration.ofMillis(slotMillis);
+    }
+
+    /**
+     * @return кол-во вставок (вызовов, а не событий), отклонённых с момента создания, т.е. вернувших false,
+     * плюс кол-во событий ячеек полос, которые не поместились в слот кольца при переносе
+     */
+    public long getRejectedCount() {
+        return rejectedInserts.sum();
+    }
+
+    /**
+     * @return внутренние счётчики пути вставки либо null, если учёт не включён при построении
+     * @see Builder#instrumented(boolean)
+     */
+    public InsertStats getInsertStats() {
+        return stats;
+    }
+
+    public Duration getRetention() {
+        return Duration.ofMillis(retentionSlots * slotMillis);
+    }
+
+    /**
+     * Построитель {@link EventStat} с настраиваемой шириной слота и глубиной хранения
+     * По умолчанию слот в 1 секунду, хранение 24 часа, системные часы, без полос и без внутренних счётчиков
+     *
+     * @param <T> Тип событий
+     */
+    public static final class Builder<T> {
+        private TimeSource timeSource = TimeSource.SYSTEM;
+        private boolean striped;
+        private boolean instrumented;
+        private boolean compact;
+        private Duration slotWidth = Duration.ofMillis(DEFAULT_SLOT_MILLIS);
+        private Duration retention = Duration.ofSeconds(SECONDS_IN_24_HOURS);
+        private Duration allowedLateness;
+        private SlotSweeper sweeper;
+
+        private Builder() {
+        }
+
+        /**
+         * @return независимый построитель с теми же настройками
+         */
+        Builder<T> copy() {
+            final Builder<T> copy = new Builder<>();
+            copy.timeSource = timeSource;
+            copy.striped = striped;
+            copy.instrumented = instrumented;
+            copy.compact = compact;
+            copy.slotWidth = slotWidth;
+            copy.retention = retention;
+            copy.allowedLateness = allowedLateness;
+            copy.sweeper = sweeper;
+            return copy;
+        }
+
+        public Builder<T> timeSource(TimeSource timeSource) {
+            this.timeSource = timeSource;
+            return this;
+        }
+
+        /**
+         * @param striped включает режим с полосами для вставок под высокой конкуренцией
+         */
+        public Builder<T> striped(boolean striped) {
+            this.striped = striped;
+            return this;
+        }
+
+        /**
+         * @param instrumented включает внутренние счётчики пути вставки ({@link EventStat#getInsertStats()})
+         */
+        public Builder<T> instrumented(boolean instrumented) {
+            this.instrumented = instrumented;
+            return this;
+        }
+
+        /**
+         * @param compact хранить слоты в разреженных таблицах, которые переходят в плотные кольца по мере заполнения
+         *                (см. {@link AdaptiveSlotRing}); текущие итоги окон при этом не ведутся, поэтому подсчёт
+         *                за фиксированные окна идёт по агрегатам, а {@link EventStat#tryAcquire(long, Duration)}
+         *                и пороги недоступны
+         */
+        public Builder<T> compact(boolean compact) {
+            this.compact = compact;
+            return this;
+        }
+
+        /**
+         * @param slotWidth разрешение по времени, целое кол-во миллисекунд
+         */
+        public Builder<T> slotWidth(Duration slotWidth) {
+            this.slotWidth = slotWidth;
+            return this;
+        }
+
+        /**
+         * @param retention глубина хранения, округляется вверх до целого кол-ва слотов
+         */
+        public Builder<T> retention(Duration retention) {
+            this.retention = retention;
+            return this;
+        }
+
+        /**
+         * @param allowedLateness насколько событие может опоздать относительно самого позднего вставленного,
+         *                        более старые события отклоняются; по умолчанию равно глубине хранения
+         */
+        public Builder<T> allowedLateness(Duration allowedLateness) {
+            this.allowedLateness = allowedLateness;
+            return this;
+        }
+
+        /**
+         * @param sweeper фоновый уборщик, который продвигает текущие итоги статистики заранее
+         */
+        public Builder<T> sweeper(SlotSweeper sweeper) {
+            this.sweeper = sweeper;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException если ширина слота не целое положительное кол-во миллисекунд,
+         * хранение короче слота или требует больше 2^24 слотов, допустимое опоздание отрицательное или больше хранения
+         */
+        public EventStat<T> build() {
+            final int retentionSlots = retentionSlots();
+            return swept(new EventStat<>(timeSource, striped, slotWidth.toMillis(), retentionSlots,
+                    periodBits(slotWidth.toMillis(), retentionSlots), compact, timeSource.currentTimeMillis(),
+                    instrumented, allowedLatenessMillis(retentionSlots)));
+        }
+
+        private EventStat<T> swept(EventStat<T> stat) {
+            if (sweeper != null) sweeper.register(stat);
+            return stat;
+        }
+
+        /**
+         * Статистика в отображённом в память файле, см. {@link EventStat#mapped(Path, TimeSource)}
+         * Ширина слота и глубина хранения должны совпадать с записанными в файл
+         *
+         * @throws IllegalStateException если включён режим с полосами или компактный режим
+         */
+        public EventStat<T> buildMapped(Path path) throws IOException {
+            if (striped) throw new IllegalStateException("Режим с полосами не поддерживается для файлового хранилища");
+            if (compact) throw new IllegalStateException("Компактный режим не поддерживается для файлового хранилища");
+            final int retentionSlots = retentionSlots();
+            final long allowedLatenessMillis = allowedLatenessMillis(retentionSlots);
+            final long createdStamp = timeSource.currentTimeMillis();
+            final MappedEventStore store = MappedEventStore.open(path, slotWidth.toMillis(), ringLengths(retentionSlots),
+                    periodBits(slotWidth.toMillis(), retentionSlots),
+                    offsetStampFor(createdStamp, slotWidth.toMillis(), retentionSlots), createdStamp);
+            return swept(new EventStat<>(timeSource, false, retentionSlots, store, instrumented, allowedLatenessMillis));
+        }
+
+        private long allowedLatenessMillis(int retentionSlots) {
+            final long retentionMillis = retentionSlots * slotWidth.toMillis();
+            if (allowedLateness == null) return retentionMillis;
+            if (allowedLateness.isNegative() || allowedLateness.toMillis() > retentionMillis) {
+                throw new IllegalArgumentException("Допустимое опоздание должно быть в пределах [0, " + retention + "]: " + allowedLateness);
+            }
+            return allowedLateness.toMillis();
+        }
+
+        private int retentionSlots() {
+            if (slotWidth.isNegative() || slotWidth.isZero() || slotWidth.getNano() % 1_000_000 != 0) {
+                throw new IllegalArgumentException("Ширина слота должна быть целым положительным кол-вом миллисекунд: " + slotWidth);
+            }
+            if (retention.compareTo(slotWidth) < 0) {
+                throw new IllegalArgumentException("Хранение " + retention + " короче слота " + slotWidth);
+            }
+            final long slotMillis = slotWidth.toMillis();
+            final long retentionSlots = -Math.floorDiv(-retention.toMillis(), slotMillis);
+            if (retentionSlots > MAX_RETENTION_SLOTS) {
+                throw new IllegalArgumentException("Хранение " + retention + " требует " + retentionSlots
+                        + " слотов, допустимо не более " + MAX_RETENTION_SLOTS);
+            }
+            return (int) retentionSlots;
+        }
     }
 }
@@ -0,0 +1,98 @@
+package ru.yandex.money.test.semelit;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Согласованный подсчёт по многим {@link EventStat} сразу: все статистики и окна считаются на один момент,
+ * а работа делится между потоками {@link ForkJoinPool}
+ *
+ * Подсчёт одной статистики за сутки уже идёт по агрегатам (не более пары сотен слотов),
+ * поэтому делится не окно, а список статистик: задача делится пополам, пока в ней больше {@link #BATCH} статистик
+ * Результат это плоский массив long без упаковки: кол-во статистики i за окно j лежит в [i * windows + j]
+ *
+ * Момент задаётся явно, поэтому результаты не расходятся из-за разного текущего времени при обходе
+ * Подсчёт на текущий момент за минуту, час или сутки читает текущие итоги (см. {@link RunningTotals}),
+ * а на момент в прошлом идёт по агрегатам
+ */
+public final class EventStatQuery {
+
+    /**
+     * Сколько статистик считает одна задача без дальнейшего деления
+     */
+    final static int BATCH = 64;
+
+    private EventStatQuery() {
+    }
+
+    /**
+     * Кол-во событий каждой статистики за последние durationInSeconds секунд на момент stamp в общем пуле
+     *
+     * @return кол-ва в порядке обхода stats
+     */
+    public static long[] countAt(Collection<? extends EventStat<?>> stats, int durationInSeconds, long stamp) {
+        return countAt(stats, new int[] {durationInSeconds}, stamp, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Кол-во событий каждой статистики за каждое из окон на момент stamp
+     *
+     * @param durationsInSeconds окна в секундах
+     * @return массив stats.size() * durationsInSeconds.length, кол-во статистики i за окно j в [i * durationsInSeconds.length + j]
+     */
+    public static long[] countAt(Collection<? extends EventStat<?>> stats, int[] durationsInSeconds, long stamp, ForkJoinPool pool) {
+        final EventStat<?>[] array = stats.toArray(new EventStat<?>[0]);
+        final int[] durations = durationsInSeconds.clone();
+        final long[] result = new long[array.length * durations.length];
+        if (array.length <= BATCH) {
+            countRange(array, 0, array.length, durations, stamp, result);
+        } else {
+            pool.invoke(new CountTask(array, 0, array.length, durations, stamp, result));
+        }
+        return result;
+    }
+
+    private static void countRange(EventStat<?>[] stats, int from, int to, int[] durations, long stamp, long[] result) {
+        for (int i = from; i < to; i++) {
+            for (int j = 0; j < durations.length; j++) {
+                result[i * durations.length + j] = stats[i].countAt(durations[j], stamp);
+            }
+        }
+    }
+
+    /**
+     * Подсчёт статистик [from, to); подзадачи пишут в непересекающиеся ячейки общего массива,
+     * а завершение подзадач публикует их записи родителю
+     */
+    private static final class CountTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final EventStat<?>[] stats;
+        private final int from;
+        private final int to;
+        private final int[] durations;
+        private final long stamp;
+        private final long[] result;
+
+        CountTask(EventStat<?>[] stats, int from, int to, int[] durations, long stamp, long[] result) {
+            this.stats = stats;
+            this.from = from;
+            this.to = to;
+            this.durations = durations;
+            this.stamp = stamp;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH) {
+                countRange(stats, from, to, durations, stamp, result);
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new CountTask(stats, from, middle, durations, stamp, result),
+                    new CountTask(stats, middle, to, durations, stamp, result));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ru.yandex.money.test.semelit;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Учёт событий в разрезе ключей (мерчант, эндпоинт и т.п.), ключ события вычисляет классификатор
+ *
+ * Для каждого ключа ведётся свой {@link EventStat}, но на адаптивных кольцах (см. {@link AdaptiveSlotRing}):
+ * редкий ключ занимает несколько сотен байт под разреженные таблицы секунд, минут и часов,
+ * и только горячий ключ со временем переходит на плотные кольца
+ *
+ * Потокобезопасен, вставка для уже известного ключа не берёт блокировок
+ *
+ * @param <K> Тип ключа, должен быть пригоден для ключа хеш-таблицы
+ * @param <T> Тип событий
+ */
+public final class EventStatRegistry<K, T> {
+    private final Function<? super T, ? extends K> classifier;
+    private final TimeSource timeSource;
+    private final ConcurrentHashMap<K, EventStat<T>> stats = new ConcurrentHashMap<>();
+
+    public EventStatRegistry(Function<? super T, ? extends K> classifier) {
+        this(classifier, TimeSource.SYSTEM);
+    }
+
+    public EventStatRegistry(Function<? super T, ? extends K> classifier, TimeSource timeSource) {
+        this.classifier = classifier;
+        this.timeSource = timeSource;
+    }
+
+    public boolean insert(T event) {
+        return insertAt(event, timeSource.currentTimeMillis());
+    }
+
+    /**
+     * @see EventStat#insertAt(Object, long)
+     */
+    public boolean insertAt(T event, long currentStamp) {
+        return statFor(classifier.apply(event)).insertAt(event, currentStamp);
+    }
+
+    public long countInLastMinute(K key) {
+        return countAt(key, EventStat.SECONDS_IN_MINUTE, timeSource.currentTimeMillis());
+    }
+
+    public long countInLastHour(K key) {
+        return countAt(key, EventStat.SECONDS_IN_HOUR, timeSource.currentTimeMillis());
+    }
+
+    public long countInLastDay(K key) {
+        return countAt(key, EventStat.SECONDS_IN_24_HOURS, timeSource.currentTimeMillis());
+    }
+
+    /**
+     * @return кол-во событий ключа, 0 для неизвестного ключа
+     * @see EventStat#countAt(int, long)
+     */
+    public long countAt(K key, int durationInSeconds, long currentStamp) {
+        EventStat<T> stat = stats.get(key);
+        return stat == null ? 0 : stat.countAt(durationInSeconds, currentStamp);
+    }
+
+    /**
+     * @return не более n ключей с наибольшим кол-вом событий за последние durationInSeconds секунд,
+     * по убыванию кол-ва; ключи без событий в окне не попадают
+     */
+    public List<Map.Entry<K, Long>> topKeys(int n, int durationInSeconds) {
+        if (n <= 0) throw new IllegalArgumentException("Кол-во ключей должно быть положительным: " + n);
+
+        final long currentStamp = timeSource.currentTimeMillis();
+        final Comparator<Map.Entry<K, Long>> byCount = Map.Entry.comparingByValue();
+        final PriorityQueue<Map.Entry<K, Long>> top = new PriorityQueue<>(n + 1, byCount);
+        stats.forEach((key, stat) -> {
+            long count = stat.countAt(durationInSeconds, currentStamp);
+            if (count > 0 && (top.size() < n || count > top.peek().getValue())) {
+                top.add(new AbstractMap.SimpleImmutableEntry<>(key, count));
+                if (top.size() > n) top.poll();
+            }
+        });
+
+        List<Map.Entry<K, Long>> result = new ArrayList<>(top);
+        result.sort(byCount.reversed());
+        return result;
+    }
+
+    public Set<K> keys() {
+        return Collections.unmodifiableSet(stats.keySet());
+    }
+
+    private EventStat<T> statFor(K key) {
+        EventStat<T> stat = stats.get(key);
+        return stat != null ? stat : stats.computeIfAbsent(key, k -> new EventStat<>(timeSource, false, true));
+    }
+}
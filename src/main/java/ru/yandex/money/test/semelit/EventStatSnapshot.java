@@ -0,0 +1,285 @@
+package ru.yandex.money.test.semelit;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.PriorityQueue;
+
+/**
+ * Неизменяемый снимок базовых счётчиков {@link EventStat} для агрегации по нескольким узлам
+ *
+ * Слоты пронумерованы от начала эпохи, а не от момента создания конкретного {@link EventStat},
+ * поэтому снимки разных узлов с одинаковой шириной слота можно складывать ({@link #merge(EventStatSnapshot...)})
+ * Нулевой слот {@link EventStat} выровнен по ширине слота, т.е. слоты узлов совпадают со слотами эпохи
+ *
+ * Хранятся только непустые слоты с накопленными суммами, так что подсчёт за любое окно занимает O(log n),
+ * а редкий трафик занимает немного места
+ * Сериализованная форма ({@link #toByteArray()}) кодирует разности номеров слотов и счётчики в varint:
+ * подряд идущие непустые слоты с небольшими счётчиками занимают 2-3 байта
+ */
+public final class EventStatSnapshot {
+    private final static int FORMAT_VERSION = 1;
+
+    private final long stamp;
+    private final long slotMillis;
+    private final long[] slots;
+
+    /**
+     * prefix[i] это сумма счётчиков слотов slots[0..i-1]
+     */
+    private final long[] prefix;
+
+    private EventStatSnapshot(long stamp, long slotMillis, long[] slots, long[] prefix) {
+        this.stamp = stamp;
+        this.slotMillis = slotMillis;
+        this.slots = slots;
+        this.prefix = prefix;
+    }
+
+    /**
+     * @param firstSlot номер слота от начала эпохи, соответствующий counts[0]
+     */
+    static EventStatSnapshot of(long stamp, long slotMillis, long firstSlot, long[] counts) {
+        int size = 0;
+        for (long count : counts) {
+            if (count != 0) size++;
+        }
+        final long[] slots = new long[size];
+        final long[] prefix = new long[size + 1];
+        int i = 0;
+        for (int offset = 0; offset < counts.length; offset++) {
+            if (counts[offset] != 0) {
+                slots[i] = firstSlot + offset;
+                prefix[i + 1] = prefix[i] + counts[offset];
+                i++;
+            }
+        }
+        return new EventStatSnapshot(stamp, slotMillis, slots, prefix);
+    }
+
+    /**
+     * @return момент снимка (мс от начала эпохи), выровненный по началу его последнего слота;
+     * у объединённого снимка самый поздний из моментов
+     */
+    public long getStamp() {
+        return stamp;
+    }
+
+    public Duration getSlotWidth() {
+        return Duration.ofMillis(slotMillis);
+    }
+
+    /**
+     * Кол-во событий с отметками времени от fromStamp до toStamp включительно с точностью до слота
+     *
+     * @throws IllegalArgumentException если fromStamp позже toStamp
+     */
+    public long countBetween(long fromStamp, long toStamp) {
+        if (fromStamp > toStamp) {
+            throw new IllegalArgumentException("Начало отрезка " + fromStamp + " позже его конца " + toStamp);
+        }
+        return countInSlots(Math.floorDiv(fromStamp, slotMillis), Math.floorDiv(toStamp, slotMillis));
+    }
+
+    /**
+     * Кол-во событий за последние durationInSeconds секунд на момент снимка
+     */
+    public long countInLast(int durationInSeconds) {
+        final long to = Math.floorDiv(stamp, slotMillis);
+        return countInSlots(to + Math.floorDiv(-durationInSeconds * 1000L, slotMillis) + 1, to);
+    }
+
+    public long countInLastMinute() {
+        return countInLast(EventStat.SECONDS_IN_MINUTE);
+    }
+
+    public long countInLastHour() {
+        return countInLast(EventStat.SECONDS_IN_HOUR);
+    }
+
+    public long countInLastDay() {
+        return countInLast(EventStat.SECONDS_IN_24_HOURS);
+    }
+
+    private long countInSlots(long from, long to) {
+        return prefix[upperBound(to)] - prefix[upperBound(from - 1)];
+    }
+
+    /**
+     * @return кол-во хранимых слотов не позже slot
+     */
+    private int upperBound(long slot) {
+        int index = Arrays.binarySearch(slots, slot);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    public static EventStatSnapshot merge(EventStatSnapshot... snapshots) {
+        return merge(Arrays.asList(snapshots));
+    }
+
+    /**
+     * Складывает снимки нескольких узлов слиянием их непустых слотов, время работы O(n log k),
+     * где n это суммарное число непустых слотов, а k кол-во снимков; память O(n) независимо от того,
+     * насколько снимки разнесены во времени
+     * Для частого объединения стоит снимать только нужное окно ({@link EventStat#snapshot(int)})
+     *
+     * @throws IllegalArgumentException если снимков нет или у них разная ширина слота
+     */
+    public static EventStatSnapshot merge(Collection<EventStatSnapshot> snapshots) {
+        if (snapshots.isEmpty()) throw new IllegalArgumentException("Нет снимков для объединения");
+
+        final long slotMillis = snapshots.iterator().next().slotMillis;
+        long stamp = Long.MIN_VALUE;
+        int total = 0;
+        final PriorityQueue<Cursor> queue = new PriorityQueue<>(snapshots.size());
+        for (EventStatSnapshot snapshot : snapshots) {
+            if (snapshot.slotMillis != slotMillis) {
+                throw new IllegalArgumentException("Снимки с разной шириной слота: " + slotMillis + " и " + snapshot.slotMillis + " мс");
+            }
+            stamp = Math.max(stamp, snapshot.stamp);
+            total += snapshot.slots.length;
+            if (snapshot.slots.length > 0) queue.add(new Cursor(snapshot));
+        }
+
+        final long[] slots = new long[total];
+        final long[] prefix = new long[total + 1];
+        int size = 0;
+        while (!queue.isEmpty()) {
+            final Cursor cursor = queue.poll();
+            final long slot = cursor.slot();
+            if (size == 0 || slots[size - 1] != slot) {
+                slots[size] = slot;
+                prefix[size + 1] = prefix[size];
+                size++;
+            }
+            prefix[size] += cursor.count();
+            if (cursor.next()) queue.add(cursor);
+        }
+        return new EventStatSnapshot(stamp, slotMillis, Arrays.copyOf(slots, size), Arrays.copyOf(prefix, size + 1));
+    }
+
+    /**
+     * Позиция в непустых слотах снимка для слияния, упорядочена по номеру текущего слота
+     */
+    private static final class Cursor implements Comparable<Cursor> {
+        private final EventStatSnapshot snapshot;
+        private int index;
+
+        Cursor(EventStatSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        long slot() {
+            return snapshot.slots[index];
+        }
+
+        long count() {
+            return snapshot.prefix[index + 1] - snapshot.prefix[index];
+        }
+
+        /**
+         * @return false, если слоты снимка закончились
+         */
+        boolean next() {
+            return ++index < snapshot.slots.length;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return Long.compare(slot(), other.slot());
+        }
+    }
+
+    /**
+     * Формат: версия, ширина слота в мс, момент снимка (zigzag), кол-во слотов,
+     * далее для каждого слота разность номера с предыдущим (для первого zigzag от нуля) и счётчик, всё в varint
+     */
+    public byte[] toByteArray() {
+        final byte[] buffer = new byte[4 * 10 + slots.length * 20];
+        int position = writeVarLong(buffer, 0, FORMAT_VERSION);
+        position = writeVarLong(buffer, position, slotMillis);
+        position = writeVarLong(buffer, position, zigzag(stamp));
+        position = writeVarLong(buffer, position, slots.length);
+        long previous = 0;
+        for (int i = 0; i < slots.length; i++) {
+            long delta = slots[i] - previous;
+            position = writeVarLong(buffer, position, i == 0 ? zigzag(delta) : delta);
+            position = writeVarLong(buffer, position, prefix[i + 1] - prefix[i]);
+            previous = slots[i];
+        }
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /**
+     * @throws IllegalArgumentException если данные повреждены (в том числе слоты не по возрастанию
+     * или счётчик не положительный) либо записаны в неизвестном формате
+     */
+    public static EventStatSnapshot fromByteArray(byte[] bytes) {
+        final Reader reader = new Reader(bytes);
+        final long version = reader.readVarLong();
+        if (version != FORMAT_VERSION) throw new IllegalArgumentException("Неизвестная версия формата снимка: " + version);
+
+        final long slotMillis = reader.readVarLong();
+        if (slotMillis <= 0) throw new IllegalArgumentException("Неверная ширина слота: " + slotMillis);
+        final long stamp = unzigzag(reader.readVarLong());
+        final long size = reader.readVarLong();
+        if (size > bytes.length / 2) throw new IllegalArgumentException("Кол-во слотов больше размера данных: " + size);
+
+        final long[] slots = new long[(int) size];
+        final long[] prefix = new long[(int) size + 1];
+        long previous = 0;
+        for (int i = 0; i < size; i++) {
+            final long delta = reader.readVarLong();
+            slots[i] = i == 0 ? unzigzag(delta) : previous + delta;
+            //varint читается как long без знака, поэтому отрицательная разность или переполнение видны по порядку слотов
+            if (i > 0 && (delta <= 0 || slots[i] <= previous)) {
+                throw new IllegalArgumentException("Слоты снимка не упорядочены по возрастанию на позиции " + reader.position);
+            }
+            final long count = reader.readVarLong();
+            if (count <= 0 || prefix[i] + count < prefix[i]) {
+                throw new IllegalArgumentException("Неверный счётчик слота " + slots[i] + ": " + count);
+            }
+            prefix[i + 1] = prefix[i] + count;
+            previous = slots[i];
+        }
+        if (reader.position != bytes.length) throw new IllegalArgumentException("Лишние байты после снимка");
+        return new EventStatSnapshot(stamp, slotMillis, slots, prefix);
+    }
+
+    private static int writeVarLong(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long readVarLong() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= bytes.length) throw new IllegalArgumentException("Снимок обрывается на позиции " + position);
+                final byte b = bytes[position++];
+                result |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return result;
+            }
+            throw new IllegalArgumentException("Слишком длинное varint-число на позиции " + position);
+        }
+    }
+}
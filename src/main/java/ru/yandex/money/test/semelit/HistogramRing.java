@@ -0,0 +1,56 @@
+package ru.yandex.money.test.semelit;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Кольцо гистограмм: строка из {@link ValueHistogram#BINS} ячеек на каждый период
+ * Каждая ячейка устроена как слот {@link SlotRing}: номер периода в старших 32 битах, счётчик в младших,
+ * поэтому строка прошлого оборота сбрасывается поячеечно первым писателем нового периода, без блокировок
+ * Счётчик ячейки ограничен 31 битом: заполненная ячейка отказывает, а не переносит разряд в номер периода
+ */
+final class HistogramRing {
+    private final AtomicLongArray bins;
+    private final int mask;
+
+    /**
+     * @param rows кол-во строк, степень двойки
+     */
+    HistogramRing(int rows) {
+        this.bins = new AtomicLongArray(rows * ValueHistogram.BINS);
+        this.mask = rows - 1;
+    }
+
+    /**
+     * @return false, если ячейка уже занята более поздним периодом либо её счётчик достиг 2^31 - 1
+     */
+    boolean add(int period, int bin) {
+        final int index = (period & mask) * ValueHistogram.BINS + bin;
+        for (;;) {
+            final long slot = bins.get(index);
+            final int slotPeriod = SlotRing.periodOf(slot);
+            final long update;
+            if (slotPeriod == period) {
+                if (SlotRing.countOf(slot) == Integer.MAX_VALUE) return false;
+                update = slot + 1;
+            } else if (period - slotPeriod > 0) {
+                update = SlotRing.pack(period, 1);
+            } else {
+                return false;
+            }
+            if (bins.compareAndSet(index, slot, update)) return true;
+        }
+    }
+
+    /**
+     * Добавляет к counts ячейки строки периода period
+     */
+    void addTo(int period, long[] counts) {
+        final int base = (period & mask) * ValueHistogram.BINS;
+        for (int bin = 0; bin < ValueHistogram.BINS; bin++) {
+            final long slot = bins.get(base + bin);
+            if (SlotRing.periodOf(slot) == period) {
+                counts[bin] += SlotRing.countOf(slot);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ru.yandex.money.test.semelit;
+
+/**
+ * Плотное кольцо поверх массива слотов: по слоту на каждый период
+ * Длина кольца это степень двойки, позиция слота это младшие биты номера периода
+ * Наследники определяют только, где лежат слоты (в куче или в отображённом файле)
+ *
+ * Раскладка слота задаётся {@link SlotLayout}: номер базового слота занимает столько бит, сколько нужно на срок службы
+ * статистики (см. {@link EventStat}), остальное отдано счётчику, т.е. 31 бит на секундный слот и 43 бита на часовой
+ * Номер периода уровня k короче номера базового слота на 6k бит, и счётчик агрегата на столько же шире
+ * Старший бит счётчика это печать, номера периодов неотрицательны
+ * Вставка, которая переполнила бы счётчик, отклоняется, а не переносит разряд в печать и номер периода;
+ * агрегат вмещает 64 полных слота предыдущего уровня, поэтому упирается в предел только базовый слот
+ */
+abstract class IndexedSlotRing extends SlotRing {
+    private final int mask;
+    private final SlotLayout layout;
+
+    /**
+     * Внутренние счётчики, null если учёт выключен
+     */
+    private InsertStats stats;
+
+    /**
+     * @throws IllegalArgumentException если длина не степень двойки
+     */
+    IndexedSlotRing(int length, SlotLayout layout) {
+        if (length <= 0 || Integer.bitCount(length) != 1) {
+            throw new IllegalArgumentException("Длина кольца должна быть степенью двойки: " + length);
+        }
+        this.mask = length - 1;
+        this.layout = layout;
+    }
+
+    @Override
+    final void instrument(InsertStats stats) {
+        this.stats = stats;
+    }
+
+    abstract long get(int index);
+
+    abstract boolean compareAndSet(int index, long expect, long update);
+
+    @Override
+    final boolean add(long period, long delta) {
+        return add(period, delta, false);
+    }
+
+    @Override
+    final boolean addSealed(long period, long delta) {
+        return add(period, delta, true);
+    }
+
+    private boolean add(long period, long delta, boolean intoSealed) {
+        final int index = (int) period & mask;
+        for (;;) {
+            final long slot = get(index);
+            final long slotPeriod = layout.periodIn(slot);
+            final long update;
+            if (slotPeriod == period) {
+                if (layout.sealedIn(slot) && !intoSealed) return false;
+                if (layout.countIn(slot) + delta > layout.maxCount) return false;
+                update = slot + delta;
+            } else if (period - slotPeriod > 0) {
+                if (delta > layout.maxCount) return false;
+                update = layout.pack(period, delta); //слот остался от прошлого оборота
+            } else {
+                return false;
+            }
+            if (compareAndSet(index, slot, update)) {
+                if (stats != null && slotPeriod != period) stats.staleSlotReset();
+                return true;
+            }
+            if (stats != null) stats.casRetry();
+        }
+    }
+
+    @Override
+    final long seal(long period) {
+        final int index = (int) period & mask;
+        for (;;) {
+            final long slot = get(index);
+            final long slotPeriod = layout.periodIn(slot);
+            final long update;
+            if (slotPeriod == period) {
+                if (layout.sealedIn(slot)) return layout.countIn(slot);
+                update = slot | layout.sealed;
+            } else if (period - slotPeriod > 0) {
+                update = layout.pack(period, 0) | layout.sealed;
+            } else {
+                return 0;
+            }
+            if (compareAndSet(index, slot, update)) return slotPeriod == period ? layout.countIn(slot) : 0;
+        }
+    }
+
+    @Override
+    final long count(long period) {
+        final long slot = get((int) period & mask);
+        return layout.periodIn(slot) == period ? layout.countIn(slot) : 0;
+    }
+}
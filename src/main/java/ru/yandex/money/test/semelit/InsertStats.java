@@ -0,0 +1,113 @@
+package ru.yandex.money.test.semelit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Внутренние счётчики пути вставки {@link EventStat}, чтобы понять, отчего замедлились вставки:
+ * <ul>
+ *     <li>сбросы слотов прошлого оборота кольца, т.е. ленивое восстановление после простоя</li>
+ *     <li>повторы CAS по слоту кольца, т.е. конкуренция писателей за один слот</li>
+ *     <li>опоздавшие вставки в запечатанные слоты и вызванные ими пересчёты сумм окон</li>
+ *     <li>продвижения текущих итогов и время под монитором на них</li>
+ *     <li>переносы ячеек полос в кольцо</li>
+ *     <li>отклонённые вставки и события ячеек полос, не поместившиеся в слот кольца</li>
+ * </ul>
+ *
+ * Ведутся, только если включены при построении ({@link EventStat.Builder#instrumented(boolean)}),
+ * иначе весь учёт это проверка на null вне быстрого пути успешного CAS
+ * Счётчики на {@link LongAdder}, поэтому учёт не добавляет конкуренции за общую cache line
+ */
+public final class InsertStats implements InsertStatsMXBean {
+    private final LongAdder rejectedInserts;
+    private final LongAdder staleSlotResets = new LongAdder();
+    private final LongAdder casRetries = new LongAdder();
+    private final LongAdder lateInserts = new LongAdder();
+    private final LongAdder lateRecounts = new LongAdder();
+    private final LongAdder totalsAdvances = new LongAdder();
+    private final LongAdder totalsAdvanceNanos = new LongAdder();
+    private final LongAdder stripeFolds = new LongAdder();
+
+    /**
+     * @param rejectedInserts счётчик отклонённых вставок, который {@link EventStat} ведёт всегда
+     */
+    InsertStats(LongAdder rejectedInserts) {
+        this.rejectedInserts = rejectedInserts;
+    }
+
+    void staleSlotReset() {
+        staleSlotResets.increment();
+    }
+
+    void casRetry() {
+        casRetries.increment();
+    }
+
+    void lateInsert() {
+        lateInserts.increment();
+    }
+
+    void lateRecount() {
+        lateRecounts.increment();
+    }
+
+    void totalsAdvance(long holdNanos) {
+        totalsAdvances.increment();
+        totalsAdvanceNanos.add(holdNanos);
+    }
+
+    void stripeFold() {
+        stripeFolds.increment();
+    }
+
+    /**
+     * Регистрирует счётчики в платформенном MBeanServer под именем ru.yandex.money.test.semelit:type=EventStat,name=name
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        final ObjectName objectName = new ObjectName("ru.yandex.money.test.semelit:type=EventStat,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    @Override
+    public long getRejectedInserts() {
+        return rejectedInserts.sum();
+    }
+
+    @Override
+    public long getStaleSlotResets() {
+        return staleSlotResets.sum();
+    }
+
+    @Override
+    public long getCasRetries() {
+        return casRetries.sum();
+    }
+
+    @Override
+    public long getLateInserts() {
+        return lateInserts.sum();
+    }
+
+    @Override
+    public long getLateRecounts() {
+        return lateRecounts.sum();
+    }
+
+    @Override
+    public long getTotalsAdvances() {
+        return totalsAdvances.sum();
+    }
+
+    @Override
+    public long getTotalsAdvanceNanos() {
+        return totalsAdvanceNanos.sum();
+    }
+
+    @Override
+    public long getStripeFolds() {
+        return stripeFolds.sum();
+    }
+}
@@ -0,0 +1,22 @@
+package ru.yandex.money.test.semelit;
+
+/**
+ * Внутренние счётчики {@link EventStat} для JMX, см. {@link InsertStats}
+ */
+public interface InsertStatsMXBean {
+    long getRejectedInserts();
+
+    long getStaleSlotResets();
+
+    long getCasRetries();
+
+    long getLateInserts();
+
+    long getLateRecounts();
+
+    long getTotalsAdvances();
+
+    long getTotalsAdvanceNanos();
+
+    long getStripeFolds();
+}
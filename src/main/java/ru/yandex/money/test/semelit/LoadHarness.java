@@ -0,0 +1,226 @@
+package ru.yandex.money.test.semelit;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Воспроизведение журнала отметок времени ({@link TimestampLog}) через вставку с отметкой времени
+ * ({@link EventStat#insertAt(Object, long)}) из нескольких потоков на полной скорости, во времени событий, а не обработки
+ * Нужен для оценки производительности на реальной форме трафика: всплески и многочасовые простои
+ * проходят за время обработки их событий, а не за своё настоящее время
+ *
+ * Потоки забирают журнал порциями по {@link #CHUNK} отметок, поэтому соседние порции вставляются одновременно
+ * и события немного перемешиваются, как при настоящей конкуренции
+ * Часы статистики идут по журналу: порция перед вставкой сдвигает их к своей первой отметке,
+ * т.е. подсчёты и уборщик видят время, до которого дошло воспроизведение
+ *
+ * Отчёт ({@link Report}) содержит пропускную способность, гистограмму задержек вставки
+ * (замер System.nanoTime вокруг каждой вставки, т.е. с его собственными издержками в пару десятков наносекунд)
+ * и точность подсчёта за минуту, час и сутки на момент последней отметки против точного подсчёта по журналу
+ */
+public final class LoadHarness {
+
+    /**
+     * Сколько отметок поток забирает за раз
+     */
+    final static int CHUNK = 1024;
+
+    private final static Object EVENT = new Object();
+
+    private LoadHarness() {
+    }
+
+    /**
+     * Отчёт о воспроизведении
+     */
+    public static final class Report {
+        private final int events;
+        private final int threads;
+        private final long elapsedNanos;
+        private final long rejected;
+        private final ValueHistogram latencyNanos;
+        private final int[] windowsInSeconds;
+        private final long[] expected;
+        private final long[] actual;
+
+        Report(int events, int threads, long elapsedNanos, long rejected, ValueHistogram latencyNanos,
+               int[] windowsInSeconds, long[] expected, long[] actual) {
+            this.events = events;
+            this.threads = threads;
+            this.elapsedNanos = elapsedNanos;
+            this.rejected = rejected;
+            this.latencyNanos = latencyNanos;
+            this.windowsInSeconds = windowsInSeconds;
+            this.expected = expected;
+            this.actual = actual;
+        }
+
+        public int getEvents() {
+            return events;
+        }
+
+        public Duration getElapsed() {
+            return Duration.ofNanos(elapsedNanos);
+        }
+
+        /**
+         * @return вставок в секунду по всем потокам
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : events * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @return кол-во вставок, вернувших false
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * @return задержки вставок в наносекундах
+         */
+        public ValueHistogram getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        /**
+         * @return окна сверки в секундах, только не длиннее глубины хранения
+         */
+        public int[] getWindowsInSeconds() {
+            return windowsInSeconds.clone();
+        }
+
+        /**
+         * @return точное кол-во событий журнала за окно i, с той же разбивкой на слоты, что у статистики
+         */
+        public long getExpected(int i) {
+            return expected[i];
+        }
+
+        /**
+         * @return кол-во статистики за окно i на момент последней отметки
+         */
+        public long getActual(int i) {
+            return actual[i];
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder result = new StringBuilder()
+                    .append(events).append(" событий, ").append(threads).append(" потоков, ")
+                    .append(getElapsed().toMillis()).append(" мс, ")
+                    .append(String.format("%.0f", getThroughput())).append(" вставок/с, отклонено ").append(rejected).append('\n')
+                    .append("задержка вставки, нс: p50 ").append(latencyNanos.getValueAtPercentile(50))
+                    .append(", p99 ").append(latencyNanos.getValueAtPercentile(99))
+                    .append(", p99.9 ").append(latencyNanos.getValueAtPercentile(99.9))
+                    .append(", p99.99 ").append(latencyNanos.getValueAtPercentile(99.99))
+                    .append(", max ").append(latencyNanos.getMaxValue()).append('\n');
+            for (int i = 0; i < windowsInSeconds.length; i++) {
+                result.append("окно ").append(windowsInSeconds[i]).append(" с: ожидалось ").append(expected[i])
+                        .append(", подсчитано ").append(actual[i]).append(", расхождение ").append(actual[i] - expected[i]).append('\n');
+            }
+            return result.toString();
+        }
+    }
+
+    /**
+     * Воспроизводит журнал в статистику, построенную по копии builder с часами воспроизведения,
+     * начинающимися с первой отметки журнала; сам builder не меняется
+     *
+     * @throws IllegalArgumentException если журнал пустой или кол-во потоков не положительное
+     */
+    public static Report replay(TimestampLog log, int threads, EventStat.Builder<Object> builder) throws InterruptedException {
+        if (log.size() == 0) throw new IllegalArgumentException("Пустой журнал");
+        if (threads <= 0) throw new IllegalArgumentException("Кол-во потоков должно быть положительным: " + threads);
+
+        final AtomicLong now = new AtomicLong(log.stampAt(0));
+        final EventStat<Object> stat = builder.copy().timeSource(now::get).build();
+        final AtomicInteger cursor = new AtomicInteger();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<long[]>> results = new ArrayList<>();
+        final long started = System.nanoTime();
+        try {
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(() -> replayChunks(log, stat, cursor, now)));
+            }
+            final long[] latencies = new long[ValueHistogram.BINS + 1]; //последняя ячейка это кол-во отклонённых
+            for (Future<long[]> result : results) {
+                final long[] partial = result.get();
+                for (int i = 0; i < latencies.length; i++) {
+                    latencies[i] += partial[i];
+                }
+            }
+            final long elapsed = System.nanoTime() - started;
+            final long rejected = latencies[ValueHistogram.BINS];
+            return report(log, threads, stat, elapsed, rejected, new ValueHistogram(Arrays.copyOf(latencies, ValueHistogram.BINS)));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Сбой потока воспроизведения", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return гистограмма задержек потока, в последней ячейке кол-во отклонённых вставок
+     */
+    private static long[] replayChunks(TimestampLog log, EventStat<Object> stat, AtomicInteger cursor, AtomicLong now) {
+        final long[] latencies = new long[ValueHistogram.BINS + 1];
+        final int size = log.size();
+        for (int from; (from = cursor.getAndAdd(CHUNK)) < size; ) {
+            final int to = Math.min(size, from + CHUNK);
+            final long first = log.stampAt(from);
+            long current = now.get();
+            while (first > current && !now.compareAndSet(current, first)) {
+                current = now.get();
+            }
+            for (int i = from; i < to; i++) {
+                final long stamp = log.stampAt(i);
+                final long start = System.nanoTime();
+                final boolean inserted = stat.insertAt(EVENT, stamp);
+                latencies[ValueHistogram.binOf(System.nanoTime() - start)]++;
+                if (!inserted) latencies[ValueHistogram.BINS]++;
+            }
+        }
+        return latencies;
+    }
+
+    private static Report report(TimestampLog log, int threads, EventStat<Object> stat, long elapsedNanos, long rejected,
+                                 ValueHistogram latencyNanos) {
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < log.size(); i++) {
+            last = Math.max(last, log.stampAt(i));
+        }
+        final long retentionSeconds = stat.getRetention().getSeconds();
+        final List<Integer> windows = new ArrayList<>();
+        for (int window : new int[] {EventStat.SECONDS_IN_MINUTE, EventStat.SECONDS_IN_HOUR, EventStat.SECONDS_IN_24_HOURS}) {
+            if (window <= retentionSeconds) windows.add(window);
+        }
+
+        final int[] windowsInSeconds = new int[windows.size()];
+        final long[] expected = new long[windows.size()];
+        final long[] actual = new long[windows.size()];
+        final long slotMillis = stat.getSlotWidth().toMillis();
+        final long lastSlot = stat.slotOf(last);
+        for (int w = 0; w < windowsInSeconds.length; w++) {
+            windowsInSeconds[w] = windows.get(w);
+            final long windowSlots = -Math.floorDiv(-windowsInSeconds[w] * 1000L, slotMillis);
+            final long firstSlot = lastSlot - windowSlots + 1;
+            for (int i = 0; i < log.size(); i++) {
+                final long slot = stat.slotOf(log.stampAt(i));
+                if (slot >= firstSlot && slot <= lastSlot) expected[w]++;
+            }
+            actual[w] = stat.countAt(windowsInSeconds[w], last);
+        }
+        return new Report(log.size(), threads, elapsedNanos, rejected, latencyNanos, windowsInSeconds, expected, actual);
+    }
+}
@@ -0,0 +1,31 @@
+package ru.yandex.money.test.semelit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Часы, которые идут только по команде
+ * Нужны для детерминированных симуляций и воспроизведения событий во времени событий, а не во времени обработки
+ */
+public final class ManualTimeSource implements TimeSource {
+    private final AtomicLong now;
+
+    public ManualTimeSource(long startMillis) {
+        now = new AtomicLong(startMillis);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now.get();
+    }
+
+    public void set(long millis) {
+        now.set(millis);
+    }
+
+    /**
+     * @return новое текущее время
+     */
+    public long advance(long millis) {
+        return now.addAndGet(millis);
+    }
+}
@@ -0,0 +1,205 @@
+package ru.yandex.money.test.semelit;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Хранилище колец {@link EventStat} в отображённом в память файле, переживающее перезапуск процесса
+ *
+ * Файл состоит из заголовка (64 байта) и следом колец базового уровня и уровней агрегатов
+ * Заголовок:
+ * <pre>
+ *  0 magic             long
+ *  8 version           int
+ * 12 levelCount        int
+ * 16 slotMillis        long, ширина базового слота
+ * 24 offsetStamp       long, отметка нулевого слота
+ * 32 lastInsertStamp   long, самая поздняя вставка, заменяет метку очистки
+ * 40 ringLengths       int[levelCount], не более 5 уровней
+ * 60 periodBits        int, сколько бит слота кольца занимает номер базового слота (см. {@link SlotLayout})
+ * </pre>
+ *
+ * Слоты помечены номером периода относительно offsetStamp (см. {@link SlotRing}),
+ * поэтому периоды, пропущенные пока процесс не работал, очищать не нужно: они будут сброшены первым писателем
+ *
+ * Версии:
+ * <ul>
+ *     <li>1: посекундное, минутное и часовое кольца без ширины слота в заголовке, не поддерживается</li>
+ *     <li>2: заголовок с уровнями, счётчик 31 бит на всех уровнях; при открытии переводится в версию 3,
+ *     агрегаты пересчитываются по базовому кольцу, которое в обеих версиях устроено одинаково</li>
+ *     <li>3: счётчик слота уровня агрегатов шире базового на сдвиг периода уровня (см. {@link IndexedSlotRing})</li>
+ *     <li>4: номер базового слота занимает periodBits бит из заголовка, а не всегда 32;
+ *     файлы версий 2 и 3 переводятся в версию 4 с periodBits = 32, т.е. их слоты не меняются</li>
+ * </ul>
+ */
+final class MappedEventStore {
+    final static long MAGIC = 0x53454D454C495431L; //"SEMELIT1"
+    final static int VERSION = 4;
+    final static int FIXED_PERIOD_BITS_VERSION = 3;
+    final static int NARROW_COUNTS_VERSION = 2;
+    final static int FIXED_RINGS_VERSION = 1;
+
+    private final static int MAGIC_OFFSET = 0;
+    private final static int VERSION_OFFSET = 8;
+    private final static int LEVEL_COUNT_OFFSET = 12;
+    private final static int SLOT_MILLIS_OFFSET = 16;
+    private final static int OFFSET_STAMP_OFFSET = 24;
+    private final static int LAST_INSERT_STAMP_OFFSET = 32;
+    private final static int RING_LENGTHS_OFFSET = 40;
+    private final static int PERIOD_BITS_OFFSET = 60;
+    private final static int HEADER_SIZE = 64;
+    private final static int MAX_LEVELS = (PERIOD_BITS_OFFSET - RING_LENGTHS_OFFSET) / Integer.BYTES;
+
+    /**
+     * Номер базового слота в файлах версий 2 и 3
+     */
+    private final static int FIXED_PERIOD_BITS = 32;
+
+    private final MappedMemory memory;
+    private final SlotRing[] levels;
+    private final long slotMillis;
+    private final int periodBits;
+    private final long offsetStamp;
+
+    private MappedEventStore(MappedMemory memory, long slotMillis, int[] ringLengths, int periodBits, long offsetStamp) {
+        this.memory = memory;
+        this.levels = new SlotRing[ringLengths.length];
+        long base = HEADER_SIZE;
+        for (int level = 0; level < ringLengths.length; level++) {
+            levels[level] = new MappedSlotRing(memory, base, ringLengths[level], EventStat.layoutOf(periodBits, level));
+            base += (long) ringLengths[level] * Long.BYTES;
+        }
+        this.slotMillis = slotMillis;
+        this.periodBits = periodBits;
+        this.offsetStamp = offsetStamp;
+    }
+
+    /**
+     * Открывает существующий файл либо создаёт новый, если файла нет или он пустой
+     *
+     * @param periodBits   бит на номер базового слота для нового файла, существующий файл хранит свои
+     * @param offsetStamp  отметка нулевого слота для нового файла
+     * @param initialStamp отметка последней вставки для нового файла, т.е. момент создания
+     * @throws IOException если заголовок файла не совпадает с ожидаемой раскладкой
+     */
+    static MappedEventStore open(Path path, long slotMillis, int[] ringLengths, int periodBits,
+                                 long offsetStamp, long initialStamp) throws IOException {
+        if (ringLengths.length > MAX_LEVELS) throw new IllegalArgumentException("Не более " + MAX_LEVELS + " уровней колец");
+
+        long size = HEADER_SIZE;
+        for (int length : ringLengths) {
+            size += (long) length * Long.BYTES;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final long existingSize = channel.size();
+            if (existingSize != 0 && existingSize != size) {
+                throw new IOException("Размер файла " + path + " " + existingSize + " байт, ожидалось " + size);
+            }
+            //отображение остаётся действительным и после закрытия канала
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            final MappedMemory memory = new MappedMemory(buffer);
+            if (existingSize == 0) {
+                buffer.putInt(VERSION_OFFSET, VERSION);
+                buffer.putInt(LEVEL_COUNT_OFFSET, ringLengths.length);
+                buffer.putLong(SLOT_MILLIS_OFFSET, slotMillis);
+                buffer.putLong(OFFSET_STAMP_OFFSET, offsetStamp);
+                buffer.putLong(LAST_INSERT_STAMP_OFFSET, initialStamp);
+                for (int level = 0; level < ringLengths.length; level++) {
+                    buffer.putInt(RING_LENGTHS_OFFSET + level * Integer.BYTES, ringLengths[level]);
+                }
+                buffer.putInt(PERIOD_BITS_OFFSET, periodBits);
+                buffer.force();
+                buffer.putLong(MAGIC_OFFSET, MAGIC); //пишем последним, чтобы недописанный заголовок не прошёл проверку
+                buffer.force();
+                return new MappedEventStore(memory, slotMillis, ringLengths, periodBits, offsetStamp);
+            }
+
+            if (buffer.getLong(MAGIC_OFFSET) != MAGIC) {
+                throw new IOException("Файл " + path + " не является хранилищем статистики событий");
+            }
+            final int version = buffer.getInt(VERSION_OFFSET);
+            if (version == FIXED_RINGS_VERSION) {
+                throw new IOException("Хранилище " + path + " версии " + version
+                        + " (посекундное, минутное и часовое кольца) не поддерживается, файл нужно создать заново");
+            }
+            if (version != VERSION && version != FIXED_PERIOD_BITS_VERSION && version != NARROW_COUNTS_VERSION) {
+                throw new IOException("Неподдерживаемая версия хранилища " + path + ": " + version);
+            }
+            if (buffer.getLong(SLOT_MILLIS_OFFSET) != slotMillis) {
+                throw new IOException("Ширина слота в " + path + " " + buffer.getLong(SLOT_MILLIS_OFFSET) + " мс, ожидалось " + slotMillis);
+            }
+            boolean sameLayout = buffer.getInt(LEVEL_COUNT_OFFSET) == ringLengths.length;
+            for (int level = 0; sameLayout && level < ringLengths.length; level++) {
+                sameLayout = buffer.getInt(RING_LENGTHS_OFFSET + level * Integer.BYTES) == ringLengths[level];
+            }
+            if (!sameLayout) {
+                throw new IOException("Раскладка колец в " + path + " не совпадает с ожидаемой");
+            }
+            final long storedOffsetStamp = buffer.getLong(OFFSET_STAMP_OFFSET);
+            if (buffer.getLong(LAST_INSERT_STAMP_OFFSET) < storedOffsetStamp) {
+                throw new IOException("Последняя вставка в " + path + " раньше нулевого слота, файл повреждён");
+            }
+            final int storedPeriodBits = version == VERSION ? buffer.getInt(PERIOD_BITS_OFFSET) : FIXED_PERIOD_BITS;
+            final MappedEventStore store = new MappedEventStore(memory, slotMillis, ringLengths, storedPeriodBits, storedOffsetStamp);
+            if (version != VERSION) {
+                if (version == NARROW_COUNTS_VERSION) store.rebuildAggregates(buffer, ringLengths[0]);
+                buffer.putInt(PERIOD_BITS_OFFSET, storedPeriodBits);
+                buffer.force();
+                buffer.putInt(VERSION_OFFSET, VERSION); //после перевода, чтобы прерванный перевод повторился при следующем открытии
+                buffer.force();
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Обнуляет кольца агрегатов и заново складывает в них базовые слоты, от старых периодов к новым
+     * Базовые слоты (и их печать) в версиях 2 и 3 устроены одинаково, поэтому не меняются
+     */
+    private void rebuildAggregates(MappedByteBuffer buffer, int baseLength) {
+        for (long offset = HEADER_SIZE + (long) baseLength * Long.BYTES; offset < buffer.capacity(); offset += Long.BYTES) {
+            buffer.putLong((int) offset, 0);
+        }
+        final long newest = Math.floorDiv(lastInsertStamp() - offsetStamp, slotMillis);
+        for (long period = Math.max(0, newest - baseLength + 1); period <= newest; period++) {
+            final long count = levels[0].count(period);
+            for (int level = 1; count > 0 && level < levels.length; level++) {
+                levels[level].add(period >> (level * EventStat.FANOUT_SHIFT), (int) count);
+            }
+        }
+    }
+
+    SlotRing[] levels() {
+        return levels;
+    }
+
+    long slotMillis() {
+        return slotMillis;
+    }
+
+    int periodBits() {
+        return periodBits;
+    }
+
+    long offsetStamp() {
+        return offsetStamp;
+    }
+
+    long lastInsertStamp() {
+        return memory.getLongVolatile(LAST_INSERT_STAMP_OFFSET);
+    }
+
+    void advanceLastInsertStamp(long stamp) {
+        long newest = lastInsertStamp();
+        while (stamp > newest && !memory.compareAndSet(LAST_INSERT_STAMP_OFFSET, newest, stamp)) {
+            newest = lastInsertStamp();
+        }
+    }
+
+    void flush() {
+        memory.force();
+    }
+}
@@ -0,0 +1,104 @@
+package ru.yandex.money.test.semelit;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Атомарные операции над long в отображённом в память файле
+ *
+ * Если доступен sun.misc.Unsafe, операции выполняются напрямую по адресу отображения,
+ * иначе через методы буфера под монитором (медленно, но корректно)
+ * Unsafe берётся через рефлексию, чтобы сборка не зависела от внутренних API JDK
+ * Порядок байт нативный, т.е. файл переносим только между машинами с одинаковым порядком байт
+ */
+final class MappedMemory {
+    private final static MethodHandle COMPARE_AND_SWAP_LONG;
+    private final static MethodHandle GET_LONG_VOLATILE;
+    private final static long BUFFER_ADDRESS_OFFSET;
+
+    static {
+        MethodHandle compareAndSwapLong = null;
+        MethodHandle getLongVolatile = null;
+        long bufferAddressOffset = -1;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            compareAndSwapLong = lookup.findVirtual(unsafeClass, "compareAndSwapLong",
+                    MethodType.methodType(boolean.class, Object.class, long.class, long.class, long.class)).bindTo(unsafe);
+            getLongVolatile = lookup.findVirtual(unsafeClass, "getLongVolatile",
+                    MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+            MethodHandle objectFieldOffset = lookup.findVirtual(unsafeClass, "objectFieldOffset",
+                    MethodType.methodType(long.class, Field.class)).bindTo(unsafe);
+            bufferAddressOffset = (long) objectFieldOffset.invoke(Buffer.class.getDeclaredField("address"));
+        } catch (Throwable e) {
+            compareAndSwapLong = null; //работаем через буфер под монитором
+        }
+        COMPARE_AND_SWAP_LONG = compareAndSwapLong;
+        GET_LONG_VOLATILE = getLongVolatile;
+        BUFFER_ADDRESS_OFFSET = bufferAddressOffset;
+    }
+
+    private final MappedByteBuffer buffer; //держим ссылку, иначе отображение может быть освобождено вместе с буфером
+    private final long address;
+
+    MappedMemory(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        this.buffer.order(ByteOrder.nativeOrder());
+        this.address = COMPARE_AND_SWAP_LONG != null ? addressOf(buffer) : 0;
+    }
+
+    static boolean isUnsafeAvailable() {
+        return COMPARE_AND_SWAP_LONG != null;
+    }
+
+    long getLongVolatile(long offset) {
+        if (address == 0) {
+            synchronized (this) {
+                return buffer.getLong((int) offset);
+            }
+        }
+        try {
+            return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address + offset);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    boolean compareAndSet(long offset, long expect, long update) {
+        if (address == 0) {
+            synchronized (this) {
+                if (buffer.getLong((int) offset) != expect) return false;
+                buffer.putLong((int) offset, update);
+                return true;
+            }
+        }
+        try {
+            return (boolean) COMPARE_AND_SWAP_LONG.invokeExact((Object) null, address + offset, expect, update);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Сбрасывает изменённые страницы на диск
+     */
+    void force() {
+        buffer.force();
+    }
+
+    private static long addressOf(MappedByteBuffer buffer) {
+        try {
+            return (long) GET_LONG_VOLATILE.invokeExact((Object) buffer, BUFFER_ADDRESS_OFFSET);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package ru.yandex.money.test.semelit;
+
+/**
+ * Плотное кольцо в отображённом в память файле, слоты лежат подряд начиная с base
+ */
+final class MappedSlotRing extends IndexedSlotRing {
+    private final MappedMemory memory;
+    private final long base;
+
+    MappedSlotRing(MappedMemory memory, long base, int length, SlotLayout layout) {
+        super(length, layout);
+        this.memory = memory;
+        this.base = base;
+    }
+
+    @Override
+    long get(int index) {
+        return memory.getLongVolatile(base + (long) index * Long.BYTES);
+    }
+
+    @Override
+    boolean compareAndSet(int index, long expect, long update) {
+        return memory.compareAndSet(base + (long) index * Long.BYTES, expect, update);
+    }
+}
@@ -0,0 +1,211 @@
+package ru.yandex.money.test.semelit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Выгрузка именованных {@link EventStat} в текстовом формате Prometheus (0.0.4)
+ *
+ * Для каждой статистики name выводятся кол-ва за последние минуту, час и сутки
+ * (gauge name с меткой window="1m", "1h", "1d") и кол-во отклонённых вставок (counter name_rejected_total)
+ *
+ * Весь неизменный текст кодируется в байты при регистрации, при выгрузке в буфер пишутся только готовые куски
+ * и цифры счётчиков, поэтому выгрузка не создаёт ни строк, ни других объектов
+ * Подсчёт за фиксированные окна это чтение текущих итогов (см. {@link RunningTotals}), т.е. O(1) на статистику
+ *
+ * Потокобезопасен: регистрация копирует массив метрик, выгрузки через канал и HTTP идут под монитором
+ * и переиспользуют один буфер
+ */
+public final class PrometheusExporter {
+    public final static String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final static Pattern NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+
+    /**
+     * Максимальная длина long в десятичной записи со знаком
+     */
+    private final static int MAX_NUMBER_LENGTH = 20;
+
+    private final static int VALUES_PER_METRIC = 4;
+
+    private static final class Metric {
+        final String name;
+        final EventStat<?> stat;
+
+        /**
+         * Неизменный текст перед каждым из значений, последний кусок завершает метрику
+         */
+        final byte[][] segments;
+        final int maxLength;
+
+        Metric(String name, EventStat<?> stat) {
+            this.name = name;
+            this.stat = stat;
+            this.segments = new byte[][] {
+                    bytes("# TYPE " + name + " gauge\n" + name + "{window=\"1m\"} "),
+                    bytes("\n" + name + "{window=\"1h\"} "),
+                    bytes("\n" + name + "{window=\"1d\"} "),
+                    bytes("\n# TYPE " + name + "_rejected_total counter\n" + name + "_rejected_total "),
+                    bytes("\n")
+            };
+            int length = VALUES_PER_METRIC * MAX_NUMBER_LENGTH;
+            for (byte[] segment : segments) {
+                length += segment.length;
+            }
+            this.maxLength = length;
+        }
+
+        private static byte[] bytes(String text) {
+            return text.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private volatile Metric[] metrics = new Metric[0];
+
+    /**
+     * Буфер выгрузки в канал и по HTTP, растёт при регистрации до наибольшего возможного размера выгрузки
+     */
+    private ByteBuffer scrapeBuffer = ByteBuffer.allocate(0);
+
+    /**
+     * @throws IllegalArgumentException если имя не подходит для метрики Prometheus или уже зарегистрировано
+     */
+    public synchronized void register(String name, EventStat<?> stat) {
+        if (!NAME.matcher(name).matches()) throw new IllegalArgumentException("Недопустимое имя метрики: " + name);
+        final Metric[] current = metrics;
+        for (Metric metric : current) {
+            if (metric.name.equals(name)) throw new IllegalArgumentException("Метрика уже зарегистрирована: " + name);
+        }
+
+        final Metric[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = new Metric(name, stat);
+        metrics = next;
+        final int maxLength = maxLength(next);
+        if (scrapeBuffer.capacity() < maxLength) scrapeBuffer = ByteBuffer.allocate(maxLength);
+    }
+
+    /**
+     * @return наибольший размер выгрузки в байтах при текущем наборе метрик
+     */
+    public int maxLength() {
+        return maxLength(metrics);
+    }
+
+    private static int maxLength(Metric[] metrics) {
+        int length = 0;
+        for (Metric metric : metrics) {
+            length += metric.maxLength;
+        }
+        return length;
+    }
+
+    /**
+     * Пишет выгрузку с текущей позиции буфера, достаточно {@link #maxLength()} свободных байт
+     *
+     * @throws BufferOverflowException если в буфере не хватило места, позиция тогда указывает на недописанную метрику
+     */
+    public void writeTo(ByteBuffer buffer) {
+        for (Metric metric : metrics) {
+            final EventStat<?> stat = metric.stat;
+            final byte[][] segments = metric.segments;
+            buffer.put(segments[0]);
+            putLong(buffer, stat.countInLastMinute());
+            buffer.put(segments[1]);
+            putLong(buffer, stat.countInLastHour());
+            buffer.put(segments[2]);
+            putLong(buffer, stat.countInLastDay());
+            buffer.put(segments[3]);
+            putLong(buffer, stat.getRejectedCount());
+            buffer.put(segments[4]);
+        }
+    }
+
+    /**
+     * Пишет выгрузку в канал целиком через внутренний буфер
+     *
+     * @return кол-во записанных байт
+     */
+    public synchronized int writeTo(WritableByteChannel channel) throws IOException {
+        final ByteBuffer buffer = render();
+        final int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return length;
+    }
+
+    /**
+     * Запускает HTTP-сервер JDK с выгрузкой по пути /metrics, остановка за вызывающим
+     */
+    public HttpServer serve(InetSocketAddress address) throws IOException {
+        final HttpServer server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+        return server;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            synchronized (this) {
+                final ByteBuffer buffer = render();
+                exchange.sendResponseHeaders(200, buffer.remaining());
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(buffer.array(), buffer.position(), buffer.remaining());
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return внутренний буфер с выгрузкой, подготовленный к чтению
+     */
+    private ByteBuffer render() {
+        final ByteBuffer buffer = scrapeBuffer;
+        buffer.clear();
+        writeTo(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Десятичная запись числа без промежуточной строки: цифры пишутся с конца по абсолютным индексам
+     */
+    static void putLong(ByteBuffer buffer, long value) {
+        //модуль Long.MIN_VALUE не представим в long, а счётчики выгрузки так далеко не уходят
+        if (value == Long.MIN_VALUE) throw new IllegalArgumentException("Значение вне диапазона выгрузки: " + value);
+        final boolean negative = value < 0;
+        long rest = negative ? -value : value;
+        int digits = 1;
+        for (long bound = 10; digits < 19 && rest >= bound; bound *= 10) {
+            digits++;
+        }
+        final int length = negative ? digits + 1 : digits;
+        if (buffer.remaining() < length) throw new BufferOverflowException();
+
+        final int start = buffer.position();
+        int index = start + length;
+        do {
+            buffer.put(--index, (byte) ('0' + rest % 10));
+            rest /= 10;
+        } while (rest != 0);
+        if (negative) buffer.put(--index, (byte) '-');
+        buffer.position(start + length);
+    }
+}
@@ -0,0 +1,325 @@
+package ru.yandex.money.test.semelit;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Текущие итоги окон {@link EventStat} (последние L слотов), подсчёт за такое окно за O(1)
+ *
+ * Слоты старше последних {@link #LAG_SLOTS} запечатываются (см. {@link SlotRing#seal(long)}),
+ * и для каждого окна хранится сумма его запечатанных слотов
+ * Подсчёт это сумма окна плюс прямое чтение ещё не запечатанного хвоста, т.е. нескольких последних слотов
+ *
+ * Итоги продвигаются лениво, когда подсчёт видит более поздний слот: под монитором запечатываются закрывшиеся слоты,
+ * а суммы окон пересчитываются иерархическим подсчётом
+ * Состояние неизменяемое и публикуется через volatile, поэтому подсчёт без продвижения не берёт блокировок
+ *
+ * Вставка идёт мимо итогов и без блокировок: в хвост как обычно, а в запечатанный слот
+ * (опоздавшее событие или гонка с печатью) через {@link #addLate(long, long)}, который пишет в кольца
+ * и только отмечает запись в счётчике опоздавших вставок
+ * Суммы окон пересчитывает следующий подсчёт, увидевший, что счётчик ушёл дальше состояния,
+ * т.е. поток опоздавших событий стоит пересчёта на подсчёт, но не сериализует вставки
+ *
+ * Продвижение итогов это и закрытие слотов для ленты {@link SlotFeed}: все закрывшиеся слоты, в том числе пустые
+ * и не попавшие ни в одно окно, передаются подпискам сразу после печати
+ */
+final class RunningTotals {
+    final static int LAG_SLOTS = 2;
+
+    private final EventStat<?> owner;
+    private final SlotRing base;
+
+    /**
+     * Внутренние счётчики, null если учёт выключен
+     */
+    private final InsertStats stats;
+    private volatile State state;
+
+    /**
+     * Кол-во вставок в запечатанные слоты, только растёт
+     * Вставка отмечается после записи в кольца, поэтому пересчёт, прочитавший счётчик до подсчёта, видит все отмеченные
+     */
+    private final LongAdder lateWrites = new LongAdder();
+    private volatile Threshold[] thresholds = new Threshold[0];
+    private volatile SlotFeed.Subscription[] subscriptions = new SlotFeed.Subscription[0];
+
+    private static final class State {
+        /**
+         * Слот, до которого продвинуты итоги
+         */
+        final long newest;
+
+        /**
+         * Слоты не позже этого запечатаны, всегда newest - LAG_SLOTS
+         */
+        final long sealedUpTo;
+
+        /**
+         * Длины окон в слотах
+         */
+        final int[] windows;
+
+        /**
+         * sums[i] это сумма слотов (newest - windows[i], sealedUpTo]
+         */
+        final long[] sums;
+
+        /**
+         * Значение счётчика опоздавших вставок, прочитанное перед подсчётом сумм
+         */
+        final long lateWrites;
+
+        State(long newest, int[] windows, long[] sums, long lateWrites) {
+            this.newest = newest;
+            this.sealedUpTo = newest - LAG_SLOTS;
+            this.windows = windows;
+            this.sums = sums;
+            this.lateWrites = lateWrites;
+        }
+    }
+
+    private static final class Threshold {
+        final int windowSlots;
+        final Duration window;
+        final long threshold;
+        final ThresholdListener listener;
+        final AtomicBoolean armed = new AtomicBoolean(true);
+
+        Threshold(int windowSlots, Duration window, long threshold, ThresholdListener listener) {
+            this.windowSlots = windowSlots;
+            this.window = window;
+            this.threshold = threshold;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * @param newest слот текущего момента
+     */
+    RunningTotals(EventStat<?> owner, SlotRing base, long newest, InsertStats stats) {
+        this.owner = owner;
+        this.base = base;
+        this.stats = stats;
+        this.state = new State(newest, new int[0], new long[0], 0);
+    }
+
+    long sealedUpTo() {
+        return state.sealedUpTo;
+    }
+
+    /**
+     * Кол-во событий за последние windowSlots слотов на слот to, окно регистрируется при первом обращении
+     *
+     * @return -1, если итоги уже продвинуты дальше to
+     */
+    long count(int windowSlots, long to) {
+        State current = state;
+        if (to > current.newest) {
+            current = advance(to);
+        } else if (to < current.newest) {
+            return -1;
+        } else if (current.lateWrites != lateWrites.sum()) {
+            current = recount();
+        }
+        int index = indexOf(current, windowSlots);
+        if (index < 0) {
+            current = register(windowSlots);
+            index = indexOf(current, windowSlots);
+        }
+        final long from = to - windowSlots + 1;
+        //хвост читаем после состояния: печать не меняет счётчики, поэтому сумма согласована на момент to
+        return current.sums[index]
+                + owner.countInSlots(Math.max(current.sealedUpTo + 1, from), to)
+                + owner.countInStripes(from, to);
+    }
+
+    /**
+     * Вставка в запечатанный слот либо в слот не позже {@link #sealedUpTo()}
+     *
+     * @return false, если слот уже занят более поздним периодом
+     */
+    boolean addLate(long slot, long delta) {
+        if (!base.addSealed(slot, delta)) return false;
+        owner.addToAggregates(slot, delta);
+        lateWrites.increment();
+        if (stats != null) stats.lateInsert();
+        return true;
+    }
+
+    /**
+     * Пересчитывает суммы окон после опоздавших вставок, не продвигая итоги
+     */
+    private synchronized State recount() {
+        final State current = state;
+        final long written = lateWrites.sum();
+        if (current.lateWrites == written) return current;
+
+        final State next = new State(current.newest, current.windows, sums(current.newest, current.windows), written);
+        state = next;
+        if (stats != null) stats.lateRecount();
+        return next;
+    }
+
+    /**
+     * Продвигает итоги до слота to: запечатывает закрывшиеся слоты и пересчитывает суммы окон
+     */
+    synchronized State advance(long to) {
+        final State current = state;
+        if (to <= current.newest) return current;
+
+        final long started = stats != null ? System.nanoTime() : 0;
+        final long written = lateWrites.sum();
+        final int[] windows = current.windows;
+        final long sealedUpTo = to - LAG_SLOTS;
+        int longest = LAG_SLOTS;
+        for (int window : windows) {
+            longest = Math.max(longest, window);
+        }
+        //слоты старше самого длинного окна не попадут ни в одно окно, их не печатаем (см. register)
+        for (long slot = Math.max(current.sealedUpTo, to - longest) + 1; slot <= sealedUpTo; slot++) {
+            base.seal(slot);
+        }
+        final SlotFeed.Subscription[] feed = subscriptions;
+        if (feed.length > 0) publish(feed, current.sealedUpTo, sealedUpTo);
+        final State next = new State(to, windows, sums(to, windows), written);
+        state = next;
+        if (stats != null) stats.totalsAdvance(System.nanoTime() - started);
+        return next;
+    }
+
+    /**
+     * Сообщает подпискам слоты (after, upTo]
+     * Слоты, которые не поместились бы ни в одну очередь подписки, не перебираются, а сразу считаются отброшенными
+     */
+    private void publish(SlotFeed.Subscription[] feed, long after, long upTo) {
+        int capacity = 0;
+        for (SlotFeed.Subscription subscription : feed) {
+            capacity = Math.max(capacity, subscription.capacity());
+        }
+        final long from = Math.max(after + 1, upTo - capacity + 1);
+        for (SlotFeed.Subscription subscription : feed) {
+            subscription.skip(from - after - 1);
+        }
+        for (long slot = from; slot <= upTo; slot++) {
+            final long count = base.count(slot) + owner.countInStripes(slot, slot);
+            final long epochSlot = owner.epochSlotOf(slot);
+            for (SlotFeed.Subscription subscription : feed) {
+                subscription.offer(epochSlot, count);
+            }
+        }
+    }
+
+    synchronized State register(int windowSlots) {
+        final State current = state;
+        if (indexOf(current, windowSlots) >= 0) return current;
+
+        final long written = lateWrites.sum();
+        //слоты окна могли остаться без печати, если окно длиннее прежних; уже запечатанные печать не меняет
+        for (long slot = current.newest - windowSlots + 1; slot <= current.sealedUpTo; slot++) {
+            base.seal(slot);
+        }
+        final int[] windows = Arrays.copyOf(current.windows, current.windows.length + 1);
+        windows[windows.length - 1] = windowSlots;
+        final State next = new State(current.newest, windows, sums(current.newest, windows), written);
+        state = next;
+        return next;
+    }
+
+    /**
+     * Суммы запечатанных слотов окон одним иерархическим подсчётом на окно
+     * Пересчёт, а не вычитание вышедших слотов: после долгого простоя итогов вышедшие слоты
+     * могут быть уже перезаписаны следующим оборотом кольца, а сумма не должна накапливать такую ошибку
+     */
+    private long[] sums(long newest, int[] windows) {
+        final long sealedUpTo = newest - LAG_SLOTS;
+        final long[] sums = new long[windows.length];
+        for (int i = 0; i < windows.length; i++) {
+            final long from = newest - windows[i] + 1;
+            if (from <= sealedUpTo) sums[i] = owner.countInSlots(from, sealedUpTo);
+        }
+        return sums;
+    }
+
+    private static int indexOf(State state, int windowSlots) {
+        for (int i = 0; i < state.windows.length; i++) {
+            if (state.windows[i] == windowSlots) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Атомарно относительно других вызовов проверяет, что за окно меньше limit событий, и вставляет count событий
+     */
+    synchronized boolean tryAcquire(int windowSlots, long limit, int count, long currentStamp) {
+        final long slot = owner.slotOf(currentStamp);
+        if (count(windowSlots, Math.max(slot, state.newest)) + count > limit) return false;
+        return owner.insertCountAt(count, currentStamp);
+    }
+
+    void addThreshold(int windowSlots, Duration window, long threshold, ThresholdListener listener) {
+        synchronized (this) {
+            final Threshold[] current = thresholds;
+            final Threshold[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = new Threshold(windowSlots, window, threshold, listener);
+            thresholds = next;
+        }
+        checkThresholds(state.newest);
+    }
+
+    /**
+     * Подписка получает слоты, закрывшиеся после подписки, поэтому итоги сначала продвигаются до текущего момента
+     */
+    synchronized void subscribe(SlotFeed.Subscription subscription) {
+        owner.sweep();
+        final SlotFeed.Subscription[] current = subscriptions;
+        final SlotFeed.Subscription[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = subscription;
+        subscriptions = next;
+    }
+
+    synchronized void unsubscribe(SlotFeed.Subscription subscription) {
+        final SlotFeed.Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscription) {
+                final SlotFeed.Subscription[] next = Arrays.copyOf(current, current.length - 1);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                subscriptions = next;
+                return;
+            }
+        }
+    }
+
+    /**
+     * После вставки в слот slot: при подписках на ленту продвигает итоги, чтобы закрывшиеся слоты
+     * сообщались без ожидания подсчёта, затем проверяет пороги
+     */
+    void afterInsert(long slot) {
+        if (subscriptions.length > 0 && slot > state.newest) advance(slot);
+        checkThresholds(slot);
+    }
+
+    /**
+     * Проверяет пороги после вставки в слот slot: уведомляет о достижении порога один раз,
+     * до тех пор пока кол-во за окно снова не опустится ниже порога
+     */
+    private void checkThresholds(long slot) {
+        final Threshold[] current = thresholds;
+        if (current.length == 0) return;
+
+        for (Threshold threshold : current) {
+            long count = -1;
+            while (count < 0) {
+                count = count(threshold.windowSlots, Math.max(slot, state.newest));
+            }
+            if (count >= threshold.threshold) {
+                if (threshold.armed.compareAndSet(true, false)) {
+                    threshold.listener.thresholdReached(threshold.window, threshold.threshold, count);
+                }
+            } else if (!threshold.armed.get()) {
+                threshold.armed.set(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ru.yandex.money.test.semelit;
+
+/**
+ * Уровни периодов {@link ValueStat} и {@link DistinctStat}:
+ * по секундам за последнюю минуту, по минутам за последний час и по часам за последние сутки
+ * Запрос за окно берёт самый мелкий уровень, который его покрывает,
+ * старый край окна выравнивается внутрь до границы периода этого уровня,
+ * т.е. окно не длиннее запрошенного и короче не более чем на минуту для часа и на час для суток
+ *
+ * Запись идёт сначала в часовой уровень: если его ячейка запись отклоняет, запись отклоняется целиком,
+ * не затрагивая мелкие уровни, т.е. уровни не расходятся между собой
+ */
+final class SecondLevels {
+    final static int SECOND_ROWS = 64;
+    final static int MINUTE_ROWS = 64;
+    final static int HOUR_ROWS = 32;
+
+    private SecondLevels() {
+    }
+
+    /**
+     * Нулевая секунда за сутки до создания, чтобы записи, опоздавшие относительно создания, попадали в неотрицательные периоды
+     * и не проигрывали пустым ячейкам (см. {@link EventStat})
+     */
+    static long offsetStampFor(long createdStamp) {
+        return createdStamp - EventStat.MILLIS_IN_24_HOURS;
+    }
+
+    static int secondOf(long currentStamp, long offsetStamp) {
+        return (int) Math.floorDiv(currentStamp - offsetStamp, 1000);
+    }
+
+    static int minuteOf(int second) {
+        return Math.floorDiv(second, EventStat.SECONDS_IN_MINUTE);
+    }
+
+    static int hourOf(int second) {
+        return Math.floorDiv(second, EventStat.SECONDS_IN_HOUR);
+    }
+
+    /**
+     * @return первый период длиной periodSeconds, целиком лежащий не раньше секунды second
+     */
+    static int firstPeriodFrom(int second, int periodSeconds) {
+        return -Math.floorDiv(-second, periodSeconds);
+    }
+}
@@ -0,0 +1,72 @@
+package ru.yandex.money.test.semelit;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Кольцо скетчей HyperLogLog: строка из {@link #REGISTERS} регистров на каждый период
+ * Регистры упакованы по {@link #REGISTERS_PER_CELL} в ячейку: номер периода в старших 32 битах,
+ * пять 6-битных регистров в младших 30, т.е. строка занимает 410 ячеек (около 3.2 Кб)
+ * Как и слот {@link SlotRing}, ячейка прошлого оборота сбрасывается первым писателем нового периода, без блокировок
+ */
+final class SketchRing {
+    final static int PRECISION = 11;
+    final static int REGISTERS = 1 << PRECISION;
+
+    private final static int REGISTER_BITS = 6;
+    private final static int REGISTER_MASK = (1 << REGISTER_BITS) - 1;
+    private final static int REGISTERS_PER_CELL = 5;
+    private final static int CELLS = (REGISTERS + REGISTERS_PER_CELL - 1) / REGISTERS_PER_CELL;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    /**
+     * @param rows кол-во строк, степень двойки
+     */
+    SketchRing(int rows) {
+        this.cells = new AtomicLongArray(rows * CELLS);
+        this.mask = rows - 1;
+    }
+
+    /**
+     * Поднимает регистр register строки периода period до rank, если он меньше
+     * Повторное значение не меняет регистр и обходится без записи
+     *
+     * @return false, если ячейка уже занята более поздним периодом
+     */
+    boolean add(int period, int register, int rank) {
+        final int index = (period & mask) * CELLS + register / REGISTERS_PER_CELL;
+        final int shift = register % REGISTERS_PER_CELL * REGISTER_BITS;
+        for (;;) {
+            final long cell = cells.get(index);
+            final int cellPeriod = SlotRing.periodOf(cell);
+            final long update;
+            if (cellPeriod == period) {
+                if ((cell >>> shift & REGISTER_MASK) >= rank) return true;
+                update = cell & ~((long) REGISTER_MASK << shift) | (long) rank << shift;
+            } else if (period - cellPeriod > 0) {
+                update = (long) period << 32 | (long) rank << shift;
+            } else {
+                return false;
+            }
+            if (cells.compareAndSet(index, cell, update)) return true;
+        }
+    }
+
+    /**
+     * Объединяет строку периода period с registers (поэлементный максимум)
+     */
+    void mergeInto(int period, byte[] registers) {
+        final int base = (period & mask) * CELLS;
+        for (int i = 0; i < CELLS; i++) {
+            final long cell = cells.get(base + i);
+            if (SlotRing.periodOf(cell) != period) continue;
+
+            final int first = i * REGISTERS_PER_CELL;
+            for (int r = 0; r < REGISTERS_PER_CELL && first + r < REGISTERS; r++) {
+                final int rank = (int) (cell >>> (r * REGISTER_BITS)) & REGISTER_MASK;
+                if (rank > registers[first + r]) registers[first + r] = (byte) rank;
+            }
+        }
+    }
+}
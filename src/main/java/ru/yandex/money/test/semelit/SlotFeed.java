@@ -0,0 +1,251 @@
+package ru.yandex.money.test.semelit;
+
+import java.time.Duration;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Лента закрывшихся слотов {@link EventStat}: каждый слот после подписки, в том числе пустой, сообщается подписчику
+ * ровно один раз, когда итоги продвигаются за него (см. {@link RunningTotals}), т.е. вставкой более позднего события,
+ * подсчётом, уборщиком {@link SlotSweeper} либо самим потоком ленты перед каждой доставкой
+ * Поэтому слот доходит до подписчика не позже чем через период доставки после закрытия и без новых вставок,
+ * и вместо опроса подсчётов потребитель может вести свои агрегаты по ленте
+ *
+ * Слот закрывается через пару слотов после своего конца и сообщается с кол-вом событий на этот момент,
+ * событие, опоздавшее дальше, попадает в подсчёты окон, но в ленту уже не попадает
+ * Слоты пронумерованы от начала эпохи, как в {@link EventStatSnapshot}, для секундных слотов это секунда эпохи
+ *
+ * Закрытие слота только кладёт номер и кол-во в ограниченную очередь подписки без блокировок и без выделения памяти,
+ * а доставку пакетами делает один поток ленты, общий для всех подписок, раз в период доставки
+ * Медленный подписчик задерживает только доставку: если его очередь полна, слоты отбрасываются
+ * (см. {@link Subscription#getDroppedCount()}), а вставка не ждёт
+ * Пакет и его массивы переиспользуются, поэтому подписчик не должен хранить пакет после возврата из вызова
+ *
+ * Поток-демон запускается в конструкторе и останавливается в {@link #close()}
+ */
+public final class SlotFeed implements AutoCloseable {
+
+    /**
+     * Получатель пакетов закрывшихся слотов, вызывается в потоке ленты
+     * Исключение получателя передаётся обработчику необработанных исключений потока, доставка продолжается
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void slotsClosed(Batch batch);
+    }
+
+    /**
+     * Пакет закрывшихся слотов одной статистики по возрастанию номеров, действителен только во время вызова получателя
+     */
+    public static final class Batch {
+        private final long[] slots;
+        private final long[] counts;
+        private final Duration slotWidth;
+        private int size;
+
+        private Batch(int capacity, Duration slotWidth) {
+            this.slots = new long[capacity];
+            this.counts = new long[capacity];
+            this.slotWidth = slotWidth;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return номер i-го слота от начала эпохи
+         */
+        public long slot(int i) {
+            return slots[i];
+        }
+
+        public long count(int i) {
+            return counts[i];
+        }
+
+        public Duration getSlotWidth() {
+            return slotWidth;
+        }
+    }
+
+    /**
+     * Подписка на одну статистику: очередь с одним писателем (закрытие слотов идёт под монитором итогов)
+     * и одним читателем (поток ленты)
+     */
+    public static final class Subscription implements AutoCloseable {
+        private final EventStat<?> stat;
+        private final RunningTotals totals;
+        private final Listener listener;
+        private final long[] slots;
+        private final long[] counts;
+        private final int mask;
+        private final Batch batch;
+
+        /**
+         * Номер следующей записи, меняет только писатель
+         */
+        private final AtomicLong tail = new AtomicLong();
+
+        /**
+         * Номер следующего чтения, меняет только поток ленты
+         */
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean closed;
+
+        private Subscription(EventStat<?> stat, int capacity, Listener listener) {
+            this.stat = stat;
+            this.totals = stat.totals();
+            this.listener = listener;
+            this.slots = new long[capacity];
+            this.counts = new long[capacity];
+            this.mask = capacity - 1;
+            this.batch = new Batch(capacity, stat.getSlotWidth());
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        /**
+         * Вызывается под монитором итогов вместо offer для слотов, которые всё равно не поместились бы в очередь
+         */
+        void skip(long slotCount) {
+            if (slotCount > 0) dropped.lazySet(dropped.get() + slotCount);
+        }
+
+        /**
+         * Вызывается под монитором итогов
+         */
+        void offer(long slot, long count) {
+            final long position = tail.get();
+            if (position - head.get() > mask) {
+                dropped.lazySet(dropped.get() + 1);
+                return;
+            }
+            final int index = (int) position & mask;
+            slots[index] = slot;
+            counts[index] = count;
+            tail.lazySet(position + 1); //публикует записанный слот
+        }
+
+        /**
+         * Вызывается только потоком ленты
+         */
+        private void drain() {
+            final long from = head.get();
+            final long to = tail.get();
+            if (from == to) return;
+
+            for (long position = from; position < to; position++) {
+                final int index = (int) position & mask;
+                batch.slots[(int) (position - from)] = slots[index];
+                batch.counts[(int) (position - from)] = counts[index];
+            }
+            batch.size = (int) (to - from);
+            head.lazySet(to); //место в очереди освобождаем до вызова получателя
+            listener.slotsClosed(batch);
+        }
+
+        /**
+         * @return кол-во слотов, отброшенных из-за переполнения очереди подписки
+         */
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+
+        /**
+         * Отписывается; уже закрытые, но не доставленные слоты не доставляются
+         */
+        @Override
+        public void close() {
+            closed = true;
+            totals.unsubscribe(this);
+        }
+    }
+
+    private final long intervalNanos;
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Thread deliverer;
+    private volatile boolean running = true;
+
+    /**
+     * Номер последнего запроса {@link #flush()} и номер запроса, до которого доставка уже прошла
+     */
+    private final AtomicLong flushRequested = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+
+    /**
+     * @param interval период доставки, т.е. насколько пакет может отставать от закрытия слотов
+     */
+    public SlotFeed(Duration interval) {
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("Период доставки должен быть положительным: " + interval);
+        }
+        this.intervalNanos = interval.toNanos();
+        this.deliverer = new Thread(this::deliverLoop, "event-stat-feed");
+        this.deliverer.setDaemon(true);
+        this.deliverer.start();
+    }
+
+    /**
+     * @param capacity сколько закрытых слотов может ждать доставки, степень двойки
+     * @throws IllegalArgumentException если ёмкость не степень двойки
+     * @throws UnsupportedOperationException для статистики без текущих итогов (компактный режим)
+     */
+    public Subscription subscribe(EventStat<?> stat, int capacity, Listener listener) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ёмкость очереди должна быть степенью двойки: " + capacity);
+        }
+        final Subscription subscription = new Subscription(stat, capacity, listener);
+        subscriptions.add(subscription);
+        subscription.totals.subscribe(subscription);
+        return subscription;
+    }
+
+    /**
+     * Доставляет все закрытые слоты в потоке ленты, не дожидаясь периода, и ждёт окончания доставки
+     */
+    public void flush() {
+        final long requested = flushRequested.incrementAndGet();
+        LockSupport.unpark(deliverer);
+        while (flushed.get() < requested && running) {
+            LockSupport.parkNanos(this, 100_000);
+        }
+    }
+
+    private void deliverLoop() {
+        while (running) {
+            LockSupport.parkNanos(this, intervalNanos);
+            final long requested = flushRequested.get();
+            deliver();
+            flushed.set(requested);
+        }
+    }
+
+    private void deliver() {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.closed) {
+                subscriptions.remove(subscription);
+                continue;
+            }
+            try {
+                //слоты закрываются и без вставок, не дожидаясь уборщика
+                subscription.stat.sweep();
+                subscription.drain();
+            } catch (RuntimeException e) {
+                //сбой одного подписчика не должен останавливать доставку остальным
+                final Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(deliverer);
+    }
+}
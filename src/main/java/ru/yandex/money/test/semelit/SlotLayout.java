@@ -0,0 +1,35 @@
+package ru.yandex.money.test.semelit;
+
+/**
+ * Раскладка слота кольца в long: номер периода в старших битах, кол-во событий в младших countBits битах
+ * Старший бит счётчика это печать (см. {@link SlotRing#seal(long)}), поэтому кол-во занимает countBits - 1 бит
+ *
+ * Сколько бит отдать номеру периода, а сколько счётчику, решает {@link EventStat} по ширине слота и сроку службы
+ */
+final class SlotLayout {
+    final int countBits;
+    final long sealed;
+    final long maxCount;
+
+    SlotLayout(int countBits) {
+        this.countBits = countBits;
+        this.sealed = 1L << (countBits - 1);
+        this.maxCount = sealed - 1;
+    }
+
+    long pack(long period, long count) {
+        return (period << countBits) | count;
+    }
+
+    long periodIn(long slot) {
+        return slot >>> countBits;
+    }
+
+    long countIn(long slot) {
+        return slot & maxCount;
+    }
+
+    boolean sealedIn(long slot) {
+        return (slot & sealed) != 0;
+    }
+}
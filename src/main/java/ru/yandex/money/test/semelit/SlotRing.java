@@ -0,0 +1,82 @@
+package ru.yandex.money.test.semelit;
+
+/**
+ * Кольцо счётчиков, в котором каждый слот помечен номером своего периода (базового слота либо слота уровня агрегатов)
+ * В старших битах слота хранится номер периода, в младших кол-во событий
+ *
+ * Слот, оставшийся от прошлого оборота кольца, сбрасывается первым писателем нового периода
+ * одним CAS вместе с его первым событием, а читатели такие слоты просто пропускают
+ * Поэтому очистка не требует ни блокировок, ни прохода по пропущенным слотам после простоя
+ *
+ * Слот плотного кольца можно запечатать ({@link #seal(long)}): старший бит счётчика помечает,
+ * что период закрыт и учтён в текущих итогах окон (см. {@link RunningTotals}),
+ * после чего обычная вставка в него отказывает и вызывающий переходит на медленный путь под монитором
+ *
+ * Хранение бывает плотным ({@link DenseSlotRing}, массив на все слоты сразу)
+ * и адаптивным ({@link AdaptiveSlotRing}, разреженная таблица с переходом на плотный массив по мере заполнения)
+ */
+abstract class SlotRing {
+
+    /**
+     * @param layout раскладка номера периода и счётчика в слоте уровня (см. {@link IndexedSlotRing})
+     */
+    static SlotRing dense(int length, SlotLayout layout) {
+        return new DenseSlotRing(length, layout);
+    }
+
+    static SlotRing adaptive(int length, SlotLayout layout) {
+        return new AdaptiveSlotRing(length, layout);
+    }
+
+    /**
+     * @return false, если слот уже занят более поздним периодом, т.е. событие вышло за окно кольца,
+     * слот периода запечатан либо его счётчик переполнился бы
+     */
+    abstract boolean add(long period, long delta);
+
+    /**
+     * Добавление в том числе в запечатанный слот, печать сохраняется
+     *
+     * @return false, если слот уже занят более поздним периодом либо его счётчик переполнился бы
+     */
+    boolean addSealed(long period, long delta) {
+        return add(period, delta);
+    }
+
+    /**
+     * Запечатывает слот периода; слот прошлого оборота при этом сбрасывается в пустой запечатанный
+     *
+     * @return кол-во событий за период на момент печати либо 0, если слот уже занят более поздним периодом
+     * @throws UnsupportedOperationException для колец без печати
+     */
+    long seal(long period) {
+        throw new UnsupportedOperationException("Кольцо не поддерживает печать слотов");
+    }
+
+    /**
+     * Включает учёт сбросов слотов и повторов CAS, вызывается до публикации кольца
+     */
+    void instrument(InsertStats stats) {
+    }
+
+    /**
+     * @return кол-во событий за период либо 0, если период уже вытеснен из кольца
+     */
+    abstract long count(long period);
+
+    /*
+     * Раскладка 32 на 32 бита для гистограмм и скетчей, где счётчик ограничен 31 битом
+     */
+
+    static long pack(int period, int count) {
+        return ((long) period << 32) | (count & 0xFFFFFFFFL);
+    }
+
+    static int periodOf(long slot) {
+        return (int) (slot >>> 32);
+    }
+
+    static int countOf(long slot) {
+        return (int) slot & Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,70 @@
+package ru.yandex.money.test.semelit;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Фоновый уборщик, общий для многих {@link EventStat}: раз в период продвигает их текущие итоги
+ * (печать закрывшихся слотов и пересчёт сумм окон, см. {@link RunningTotals}) до текущего момента
+ *
+ * Без уборщика итоги продвигает первый подсчёт, {@link EventStat#tryAcquire(long, Duration)} или вставка с порогами,
+ * и после долгого простоя этому потоку достаётся печать до суток слотов; с уборщиком ему остаётся только свой слот
+ * Сброс слотов прошлого оборота кольца уборщику не нужен: его и так делает CAS вставки в свой слот
+ *
+ * Статистики хранятся по слабым ссылкам и выбывают сами, когда становятся недостижимы
+ * Поток-демон запускается в конструкторе и останавливается в {@link #close()}
+ */
+public final class SlotSweeper implements AutoCloseable {
+    private final long periodNanos;
+    private final CopyOnWriteArrayList<WeakReference<EventStat<?>>> stats = new CopyOnWriteArrayList<>();
+    private final Thread sweeper;
+    private volatile boolean running = true;
+
+    /**
+     * @param period период обхода, обычно не больше ширины слота
+     */
+    public SlotSweeper(Duration period) {
+        if (period.isNegative() || period.isZero()) {
+            throw new IllegalArgumentException("Период обхода должен быть положительным: " + period);
+        }
+        this.periodNanos = period.toNanos();
+        this.sweeper = new Thread(this::sweepLoop, "event-stat-sweeper");
+        this.sweeper.setDaemon(true);
+        this.sweeper.start();
+    }
+
+    public void register(EventStat<?> stat) {
+        stats.add(new WeakReference<>(stat));
+    }
+
+    /**
+     * Обходит все статистики сразу, не дожидаясь периода
+     */
+    public void sweepNow() {
+        boolean cleared = false;
+        for (WeakReference<EventStat<?>> reference : stats) {
+            final EventStat<?> stat = reference.get();
+            if (stat != null) {
+                stat.sweep();
+            } else {
+                cleared = true;
+            }
+        }
+        if (cleared) stats.removeIf(reference -> reference.get() == null);
+    }
+
+    private void sweepLoop() {
+        while (running) {
+            LockSupport.parkNanos(this, periodNanos);
+            if (running) sweepNow();
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(sweeper);
+    }
+}
@@ -0,0 +1,18 @@
+package ru.yandex.money.test.semelit;
+
+import java.time.Duration;
+
+/**
+ * Получатель уведомлений о том, что кол-во событий за окно достигло порога
+ * (см. {@link EventStat#addThresholdListener(Duration, long, ThresholdListener)})
+ *
+ * Вызывается в потоке вставки, поэтому должен быть быстрым и не бросать исключений
+ */
+@FunctionalInterface
+public interface ThresholdListener {
+
+    /**
+     * @param count кол-во событий за окно в момент срабатывания, не меньше threshold
+     */
+    void thresholdReached(Duration window, long threshold, long count);
+}
@@ -0,0 +1,13 @@
+package ru.yandex.money.test.semelit;
+
+/**
+ * Источник текущего времени в миллисекундах для {@link EventStat}
+ * Позволяет подменить системные часы, например, на {@link CachedTimeSource} или {@link ManualTimeSource}
+ */
+@FunctionalInterface
+public interface TimeSource {
+
+    TimeSource SYSTEM = System::currentTimeMillis;
+
+    long currentTimeMillis();
+}
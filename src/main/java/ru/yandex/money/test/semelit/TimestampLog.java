@@ -0,0 +1,122 @@
+package ru.yandex.money.test.semelit;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Журнал отметок времени событий для воспроизведения нагрузки ({@link LoadHarness})
+ *
+ * Файловый журнал это подряд записанные отметки в миллисекундах (long, big-endian, как пишет {@link DataOutputStream}),
+ * он отображается в память только для чтения, т.е. не занимает кучу; не более 2^28 отметок (2 Гб) на файл
+ * Синтетический журнал строится по профилю частоты из отрезков постоянной частоты ({@link Segment}),
+ * отрезок с нулевой частотой это простой, отрезок с высокой частотой это всплеск
+ *
+ * Отметки не обязаны идти по порядку, событие с опозданием воспроизводится как есть
+ */
+public final class TimestampLog {
+    private final static int MAX_SIZE = Integer.MAX_VALUE / Long.BYTES;
+
+    /**
+     * Отрезок синтетического профиля: length с частотой eventsPerSecond
+     */
+    public static final class Segment {
+        final long lengthMillis;
+        final double eventsPerSecond;
+
+        public Segment(Duration length, double eventsPerSecond) {
+            if (length.isNegative() || eventsPerSecond < 0) {
+                throw new IllegalArgumentException("Отрицательный отрезок профиля: " + length + ", " + eventsPerSecond);
+            }
+            this.lengthMillis = length.toMillis();
+            this.eventsPerSecond = eventsPerSecond;
+        }
+    }
+
+    private final LongBuffer stamps;
+
+    private TimestampLog(LongBuffer stamps) {
+        this.stamps = stamps;
+    }
+
+    /**
+     * @throws IOException если файл недоступен или его размер не кратен 8 байтам
+     */
+    public static TimestampLog map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size % Long.BYTES != 0 || size / Long.BYTES > MAX_SIZE) {
+                throw new IOException("Размер журнала " + path + " " + size + " байт, ожидалось не более "
+                        + MAX_SIZE + " отметок по " + Long.BYTES + " байт");
+            }
+            //отображение остаётся действительным и после закрытия канала
+            return new TimestampLog(channel.map(FileChannel.MapMode.READ_ONLY, 0, size).asLongBuffer());
+        }
+    }
+
+    public static void write(Path path, TimestampLog log) throws IOException {
+        try (OutputStream file = Files.newOutputStream(path);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            for (int i = 0; i < log.size(); i++) {
+                out.writeLong(log.stampAt(i));
+            }
+        }
+    }
+
+    public static TimestampLog of(long... stamps) {
+        return new TimestampLog(LongBuffer.wrap(stamps.clone()));
+    }
+
+    /**
+     * Журнал по профилю частоты: в каждой секунде отрезка floor(rate) или floor(rate) + 1 событий,
+     * чтобы в среднем выходила частота отрезка, с равномерно случайными отметками внутри секунды
+     *
+     * @param seed затравка генератора, один и тот же профиль с той же затравкой даёт тот же журнал
+     * @throws IllegalArgumentException если журнал вышел бы больше 2^28 отметок
+     */
+    public static TimestampLog synthetic(long startStamp, long seed, Segment... profile) {
+        double total = 0;
+        for (Segment segment : profile) {
+            total += (Math.floor(segment.eventsPerSecond) + 1) * Math.ceil(segment.lengthMillis / 1000.0);
+        }
+        if (total > MAX_SIZE) throw new IllegalArgumentException("Профиль на " + (long) total + " событий, не более " + MAX_SIZE);
+
+        final Random random = new Random(seed);
+        final long[] stamps = new long[(int) total];
+        int size = 0;
+        long second = startStamp;
+        for (Segment segment : profile) {
+            final long end = second + segment.lengthMillis;
+            final int whole = (int) segment.eventsPerSecond;
+            final double fraction = segment.eventsPerSecond - whole;
+            for (; second < end; second += 1000) {
+                final int width = (int) Math.min(1000, end - second);
+                final int count = whole + (random.nextDouble() < fraction ? 1 : 0);
+                final int from = size;
+                for (int i = 0; i < count; i++) {
+                    stamps[size++] = second + random.nextInt(width);
+                }
+                Arrays.sort(stamps, from, size);
+            }
+            second = end;
+        }
+        return new TimestampLog(LongBuffer.wrap(Arrays.copyOf(stamps, size)));
+    }
+
+    public int size() {
+        return stamps.limit();
+    }
+
+    public long stampAt(int index) {
+        return stamps.get(index);
+    }
+}
@@ -0,0 +1,78 @@
+package ru.yandex.money.test.semelit;
+
+/**
+ * Неизменяемая лог-линейная гистограмма значений за окно (см. {@link ValueStat})
+ *
+ * Каждая степень двойки делится на 16 равных интервалов, значения меньше 16 хранятся точно,
+ * поэтому относительная погрешность значения не превышает 1/16 на всём диапазоне long
+ * Значение интервала сообщается по его верхней границе, т.е. оценка не занижается
+ */
+public final class ValueHistogram {
+    final static int SUB_BUCKET_BITS = 4;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    final static int BINS = (Long.SIZE - 1 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS; //старший бит неотрицательного long не выше 62
+
+    private final long[] counts;
+    private final long totalCount;
+
+    ValueHistogram(long[] counts) {
+        this.counts = counts;
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        this.totalCount = total;
+    }
+
+    static int binOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return наибольшее значение, попадающее в интервал bin
+     */
+    static long highestValueOf(int bin) {
+        if (bin < SUB_BUCKETS) return bin;
+        final int shift = bin / SUB_BUCKETS - 1;
+        final long lowest = (long) (SUB_BUCKETS + bin % SUB_BUCKETS) << shift;
+        final long highest = lowest + (1L << shift) - 1;
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @param percentile от 0 до 100
+     * @return значение, не меньше которого percentile процентов значений окна, либо 0 для пустого окна
+     * @throws IllegalArgumentException если percentile вне [0, 100]
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("Перцентиль должен быть в пределах [0, 100]: " + percentile);
+        }
+        if (totalCount == 0) return 0;
+
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long seen = 0;
+        for (int bin = 0; bin < BINS; bin++) {
+            seen += counts[bin];
+            if (seen >= rank) return highestValueOf(bin);
+        }
+        return getMaxValue();
+    }
+
+    /**
+     * @return верхняя граница интервала наибольшего значения окна либо 0 для пустого окна
+     */
+    public long getMaxValue() {
+        for (int bin = BINS - 1; bin >= 0; bin--) {
+            if (counts[bin] > 0) return highestValueOf(bin);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,115 @@
+package ru.yandex.money.test.semelit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Учёт значений (например, длительностей запросов) с перцентилями за последние минуту, час и сутки
+ *
+ * Для каждого периода ведётся лог-линейная гистограмма (см. {@link ValueHistogram}) на трёх уровнях {@link SecondLevels},
+ * запрос за окно складывает гистограммы самого мелкого уровня, который его покрывает
+ *
+ * Запись значения это CAS по одной ячейке каждого уровня, без блокировок и без выделения памяти
+ * Ячейки помечены номером периода, как слоты {@link SlotRing}, поэтому устаревшие строки не требуют очистки
+ *
+ * Память около 1.2 Мб: 64 + 64 + 32 строки по 960 ячеек
+ */
+public final class ValueStat {
+    private final HistogramRing secondHistograms = new HistogramRing(SecondLevels.SECOND_ROWS);
+    private final HistogramRing minuteHistograms = new HistogramRing(SecondLevels.MINUTE_ROWS);
+    private final HistogramRing hourHistograms = new HistogramRing(SecondLevels.HOUR_ROWS);
+    private final TimeSource timeSource;
+    private final long offsetStamp;
+
+    /**
+     * Самая поздняя отметка времени среди записанных значений, только растёт
+     */
+    private final AtomicLong lastRecordStamp;
+
+    public ValueStat() {
+        this(TimeSource.SYSTEM);
+    }
+
+    public ValueStat(TimeSource timeSource) {
+        final long createdStamp = timeSource.currentTimeMillis();
+        this.timeSource = timeSource;
+        this.offsetStamp = SecondLevels.offsetStampFor(createdStamp);
+        this.lastRecordStamp = new AtomicLong(createdStamp);
+    }
+
+    /**
+     * @throws IllegalArgumentException если значение отрицательное
+     */
+    public boolean recordValue(long value) {
+        return recordValueAt(value, timeSource.currentTimeMillis());
+    }
+
+    /**
+     * Запись значения, полученного в момент currentStamp
+     * Уровень, который уже ушёл дальше периода события, значение пропускает,
+     * т.е. запоздавшее на несколько минут значение попадёт только в часовые и суточные окна
+     * Первым пишется часовой уровень (см. {@link SecondLevels}): его ячейка копит больше всего
+     * и первой упирается в предел счётчика
+     *
+     * @return false, если значение старше суток относительно самого позднего записанного значения
+     * либо счётчик его ячейки за час уже достиг 2^31 - 1
+     * @throws IllegalArgumentException если значение отрицательное
+     */
+    public boolean recordValueAt(long value, long currentStamp) {
+        if (value < 0) throw new IllegalArgumentException("Отрицательное значение: " + value);
+
+        final long last = lastRecordStamp.get();
+        if (currentStamp < last - EventStat.MILLIS_IN_24_HOURS) return false;
+
+        final int bin = ValueHistogram.binOf(value);
+        final int second = SecondLevels.secondOf(currentStamp, offsetStamp);
+        if (!hourHistograms.add(SecondLevels.hourOf(second), bin)) return false;
+        minuteHistograms.add(SecondLevels.minuteOf(second), bin);
+        secondHistograms.add(second, bin);
+
+        long newest = last;
+        while (currentStamp > newest && !lastRecordStamp.compareAndSet(newest, currentStamp)) {
+            newest = lastRecordStamp.get();
+        }
+        return true;
+    }
+
+    /**
+     * Гистограмма значений за последние durationInSeconds секунд на момент currentStamp
+     *
+     * @throws IllegalArgumentException если окно не положительное или больше 24 часов
+     */
+    public ValueHistogram histogramAt(int durationInSeconds, long currentStamp) {
+        if (durationInSeconds <= 0 || durationInSeconds > EventStat.SECONDS_IN_24_HOURS) {
+            throw new IllegalArgumentException("Окно должно быть в пределах (0, 24ч]: " + durationInSeconds);
+        }
+        final int to = SecondLevels.secondOf(currentStamp, offsetStamp);
+        final int from = to - durationInSeconds + 1;
+        final long[] counts = new long[ValueHistogram.BINS];
+        if (durationInSeconds <= EventStat.SECONDS_IN_MINUTE) {
+            addPeriods(secondHistograms, from, to, counts);
+        } else if (durationInSeconds <= EventStat.SECONDS_IN_HOUR) {
+            addPeriods(minuteHistograms, SecondLevels.firstPeriodFrom(from, EventStat.SECONDS_IN_MINUTE), SecondLevels.minuteOf(to), counts);
+        } else {
+            addPeriods(hourHistograms, SecondLevels.firstPeriodFrom(from, EventStat.SECONDS_IN_HOUR), SecondLevels.hourOf(to), counts);
+        }
+        return new ValueHistogram(counts);
+    }
+
+    public ValueHistogram histogramInLastMinute() {
+        return histogramAt(EventStat.SECONDS_IN_MINUTE, timeSource.currentTimeMillis());
+    }
+
+    public ValueHistogram histogramInLastHour() {
+        return histogramAt(EventStat.SECONDS_IN_HOUR, timeSource.currentTimeMillis());
+    }
+
+    public ValueHistogram histogramInLastDay() {
+        return histogramAt(EventStat.SECONDS_IN_24_HOURS, timeSource.currentTimeMillis());
+    }
+
+    private static void addPeriods(HistogramRing ring, int from, int to, long[] counts) {
+        for (int period = from; period <= to; period++) {
+            ring.addTo(period, counts);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ru.yandex.money.test.semelit;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import static org.junit.Assert.*;
+
+public class AsyncEventStatTest {
+    private static final Duration HOUR = Duration.ofHours(1);
+
+    @Test
+    public void testConcurrentInsertsAcrossSlots() throws ExecutionException, InterruptedException {
+        final long offsetStamp = System.currentTimeMillis();
+        final EventStat<Long> es = new EventStat<>(new ManualTimeSource(offsetStamp + 100 * 1000L));
+        try (AsyncEventStat<Long> async = new AsyncEventStat<>(es, 1024, AsyncEventStat.Backpressure.BLOCK, Duration.ofMillis(1))) {
+            List<ForkJoinTask<Void>> taskList = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                taskList.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        for (int i = 0; i < 100_000; i++) {
+                            long stamp = offsetStamp + i / 1000 * 1000L;
+                            assertTrue(async.insertAt(stamp, stamp));
+                        }
+                    }
+                }.fork());
+            }
+            for (ForkJoinTask<Void> task : taskList) {
+                task.get();
+            }
+            async.flush();
+            assertEquals(800_000, async.countInLastDay());
+            assertEquals(8 * 1000 * 60, es.countAt(EventStat.SECONDS_IN_MINUTE, offsetStamp + 99 * 1000L));
+            assertEquals(0, async.getDroppedCount());
+        }
+    }
+
+    @Test
+    public void testReadsCatchUpWithinStaleness() throws InterruptedException {
+        final EventStat<Object> es = new EventStat<>(new ManualTimeSource(System.currentTimeMillis()));
+        try (AsyncEventStat<Object> async = new AsyncEventStat<>(es, 16, AsyncEventStat.Backpressure.DROP, Duration.ofMillis(20))) {
+            for (int i = 0; i < 1000; i++) {
+                async.insert(new Object());
+            }
+            long deadline = System.currentTimeMillis() + 2000;
+            while (async.countInLastMinute() < 1000 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1000, async.countInLastMinute());
+        }
+    }
+
+    @Test
+    public void testOutOfOrderEventsDroppedWhenQueueIsFull() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp + 60_000);
+        final EventStat<Object> es = new EventStat<>(clock);
+        //применитель спит час, очередь разбирает только flush
+        try (AsyncEventStat<Object> async = new AsyncEventStat<>(es, 4, AsyncEventStat.Backpressure.DROP, HOUR)) {
+            assertTrue(async.insertAt(new Object(), offsetStamp + 59_000));
+            int accepted = 0;
+            for (int i = 0; i < 10; i++) {
+                if (async.insertAt(new Object(), offsetStamp + (i + 1) * 1000L)) accepted++;
+            }
+            assertEquals(4, accepted);
+            assertEquals(6, async.getDroppedCount());
+            async.flush();
+            assertEquals(5, async.countInLastMinute());
+        }
+    }
+
+    @Test
+    public void testOutOfOrderEventsBlockUntilApplied() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp + 60_000);
+        final EventStat<Object> es = new EventStat<>(clock);
+        try (AsyncEventStat<Object> async = new AsyncEventStat<>(es, 2, AsyncEventStat.Backpressure.BLOCK, HOUR)) {
+            assertTrue(async.insertAt(new Object(), offsetStamp + 59_000));
+            for (int i = 0; i < 100; i++) {
+                assertTrue(async.insertAt(new Object(), offsetStamp + (i % 50 + 1) * 1000L));
+            }
+            async.flush();
+            assertEquals(101, async.countInLastMinute());
+            assertEquals(0, async.getDroppedCount());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInsertAfterClose() {
+        AsyncEventStat<Object> async = new AsyncEventStat<>(new EventStat<>(), 1, AsyncEventStat.Backpressure.DROP, HOUR);
+        async.close();
+        async.insert(new Object());
+    }
+}
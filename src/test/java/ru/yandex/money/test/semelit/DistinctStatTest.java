@@ -0,0 +1,136 @@
+package ru.yandex.money.test.semelit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import static org.junit.Assert.*;
+
+public class DistinctStatTest {
+
+    /**
+     * Пять стандартных ошибок оценки
+     */
+    private static void assertWithinError(long expected, long actual) {
+        assertTrue("Ожидаем около " + expected + ", но " + actual, Math.abs(actual - expected) <= expected * 0.115 + 1);
+    }
+
+    @Test
+    public void testSmallCountsAreNearlyExact() {
+        final DistinctStat<Integer> stat = new DistinctStat<>(new ManualTimeSource(System.currentTimeMillis()));
+        assertEquals(0, stat.distinctInLastMinute());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(stat.insert(i));
+        }
+        final long distinct = stat.distinctInLastMinute();
+        assertTrue("Оценка " + distinct, distinct >= 98 && distinct <= 102);
+    }
+
+    @Test
+    public void testRepeatsDoNotInflateEstimate() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final DistinctStat<Long> stat = new DistinctStat<>(clock, Long::longValue);
+        for (int round = 0; round < 10; round++) {
+            for (long user = 0; user < 50_000; user++) {
+                stat.insert(user);
+            }
+            clock.advance(1000);
+        }
+        assertWithinError(50_000, stat.distinctInLastMinute());
+        assertWithinError(50_000, stat.distinctInLastDay());
+    }
+
+    @Test
+    public void testLargeCardinalityOverHour() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final DistinctStat<Long> stat = new DistinctStat<>(clock, Long::longValue);
+        long user = 0;
+        for (int minute = 0; minute < 60; minute++) {
+            for (int i = 0; i < 20_000; i++) {
+                stat.insert(user++);
+            }
+            clock.advance(EventStat.MILLIS_IN_MINUTE);
+        }
+        //окно часа выравнивается внутрь до целых минут, поэтому первая минута в него уже не попадает
+        assertWithinError(59 * 20_000, stat.distinctInLastHour());
+        assertWithinError(60 * 20_000, stat.distinctInLastDay());
+        assertEquals(0, stat.distinctInLastMinute());
+    }
+
+    @Test
+    public void testWindowsExpire() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final DistinctStat<Integer> stat = new DistinctStat<>(clock);
+        for (int i = 0; i < 1000; i++) {
+            stat.insert(i);
+        }
+        clock.advance(2 * EventStat.MILLIS_IN_MINUTE);
+        assertEquals(0, stat.distinctInLastMinute());
+        assertWithinError(1000, stat.distinctInLastHour());
+
+        clock.advance(2 * EventStat.MILLIS_IN_HOUR);
+        assertEquals(0, stat.distinctInLastHour());
+        assertWithinError(1000, stat.distinctInLastDay());
+
+        clock.advance(EventStat.MILLIS_IN_24_HOURS);
+        assertEquals(0, stat.distinctInLastDay());
+    }
+
+    @Test
+    public void testRingReuseAfterManyDays() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final DistinctStat<Integer> stat = new DistinctStat<>(clock);
+        for (int hour = 0; hour < 72; hour++) {
+            for (int i = 0; i < 100; i++) {
+                stat.insert(hour * 100 + i);
+            }
+            clock.advance(EventStat.MILLIS_IN_HOUR);
+        }
+        assertEquals(0, stat.distinctInLastMinute());
+        //последние 23 полных часа, текущий час пуст
+        assertWithinError(23 * 100, stat.distinctInLastDay());
+    }
+
+    @Test
+    public void testLateEvents() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final DistinctStat<Integer> stat = new DistinctStat<>(clock);
+        assertTrue("Событие до создания в пределах суток", stat.insertAt(1, offsetStamp - EventStat.MILLIS_IN_HOUR));
+        clock.advance(EventStat.MILLIS_IN_24_HOURS);
+        assertTrue(stat.insert(2));
+        assertFalse(stat.insertAt(3, offsetStamp - 1000));
+        assertEquals(1, stat.distinctInLastMinute());
+    }
+
+    @Test
+    public void testConcurrentInsert() throws ExecutionException, InterruptedException {
+        final DistinctStat<Long> stat = new DistinctStat<>(new ManualTimeSource(System.currentTimeMillis()), Long::longValue);
+        List<ForkJoinTask<Void>> taskList = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            taskList.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    //потоки вставляют одни и те же 100000 пользователей
+                    for (long user = 0; user < 100_000; user++) {
+                        assertTrue(stat.insert(user));
+                    }
+                }
+            }.fork());
+        }
+        for (ForkJoinTask<Void> task : taskList) {
+            task.get();
+        }
+        assertWithinError(100_000, stat.distinctInLastMinute());
+        assertWithinError(100_000, stat.distinctInLastHour());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWindowLongerThanDay() {
+        new DistinctStat<>().distinctAt(EventStat.SECONDS_IN_24_HOURS + 1, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,66 @@
+package ru.yandex.money.test.semelit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class EventStatQueryTest {
+
+    @Test
+    public void testSameAsSequentialCountAtOneStamp() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final Random random = new Random(23);
+        final List<EventStat<Object>> stats = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            EventStat<Object> es = new EventStat<>(clock);
+            for (int j = random.nextInt(50); j > 0; j--) {
+                es.insertCountAt(random.nextInt(10) + 1, offsetStamp + random.nextInt((int) EventStat.MILLIS_IN_HOUR * 2));
+            }
+            stats.add(es);
+        }
+        clock.advance(2 * EventStat.MILLIS_IN_HOUR);
+
+        final int[] durations = {EventStat.SECONDS_IN_MINUTE, EventStat.SECONDS_IN_HOUR, EventStat.SECONDS_IN_24_HOURS, 90 * 60};
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (long stamp : new long[] {clock.currentTimeMillis(), offsetStamp + EventStat.MILLIS_IN_HOUR}) {
+                final long[] counts = EventStatQuery.countAt(stats, durations, stamp, pool);
+                assertEquals(stats.size() * durations.length, counts.length);
+                for (int i = 0; i < stats.size(); i++) {
+                    for (int j = 0; j < durations.length; j++) {
+                        assertEquals(stats.get(i).countAt(durations[j], stamp), counts[i * durations.length + j]);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSingleWindowInCommonPool() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final List<EventStat<Object>> stats = new ArrayList<>();
+        for (int i = 0; i < 3 * EventStatQuery.BATCH + 1; i++) {
+            EventStat<Object> es = new EventStat<>(clock);
+            es.insertCountAt(i + 1, clock.currentTimeMillis());
+            stats.add(es);
+        }
+        final long[] counts = EventStatQuery.countAt(stats, EventStat.SECONDS_IN_24_HOURS, clock.currentTimeMillis());
+        for (int i = 0; i < counts.length; i++) {
+            assertEquals(i + 1, counts[i]);
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        assertEquals(0, EventStatQuery.countAt(Collections.<EventStat<Object>>emptyList(), EventStat.SECONDS_IN_HOUR, 0).length);
+    }
+}
@@ -0,0 +1,129 @@
+package ru.yandex.money.test.semelit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import static org.junit.Assert.*;
+
+public class EventStatRegistryTest {
+
+    private static final class Payment {
+        final String merchant;
+
+        Payment(String merchant) {
+            this.merchant = merchant;
+        }
+    }
+
+    @Test
+    public void testCountByKey() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStatRegistry<String, Payment> registry = new EventStatRegistry<>(p -> p.merchant, clock);
+        assertTrue(registry.insert(new Payment("a")));
+        assertTrue(registry.insert(new Payment("a")));
+        assertTrue(registry.insert(new Payment("b")));
+        clock.advance(EventStat.MILLIS_IN_MINUTE + 1000);
+        assertTrue(registry.insert(new Payment("b")));
+
+        assertEquals(0, registry.countInLastMinute("a"));
+        assertEquals(2, registry.countInLastHour("a"));
+        assertEquals(1, registry.countInLastMinute("b"));
+        assertEquals(2, registry.countInLastDay("b"));
+        assertEquals(0, registry.countInLastDay("c"));
+        assertEquals(2, registry.keys().size());
+    }
+
+    @Test
+    public void testTopKeys() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStatRegistry<Integer, Integer> registry = new EventStatRegistry<>(i -> i % 100, clock);
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j <= i; j++) {
+                registry.insert(i); //у ключа i ровно i + 1 событие
+            }
+        }
+        clock.advance(EventStat.MILLIS_IN_HOUR);
+        registry.insert(5);
+
+        List<Map.Entry<Integer, Long>> top = registry.topKeys(3, EventStat.SECONDS_IN_24_HOURS);
+        assertEquals(3, top.size());
+        assertEquals(Integer.valueOf(99), top.get(0).getKey());
+        assertEquals(Long.valueOf(100), top.get(0).getValue());
+        assertEquals(Integer.valueOf(98), top.get(1).getKey());
+        assertEquals(Integer.valueOf(97), top.get(2).getKey());
+
+        List<Map.Entry<Integer, Long>> lastMinute = registry.topKeys(3, EventStat.SECONDS_IN_MINUTE);
+        assertEquals(1, lastMinute.size());
+        assertEquals(Integer.valueOf(5), lastMinute.get(0).getKey());
+        assertEquals(Long.valueOf(1), lastMinute.get(0).getValue());
+    }
+
+    @Test
+    public void testManyColdKeys48hr() {
+        final long offsetStamp = System.currentTimeMillis();
+        final EventStatRegistry<Long, Long> registry = new EventStatRegistry<>(stamp -> stamp % 1000, new ManualTimeSource(offsetStamp));
+        //1000 ключей, у каждого событие раз в 1000 секунд в течение 48 часов
+        final long finalStamp = offsetStamp + EventStat.MILLIS_IN_24_HOURS * 2;
+        for (long i = 0; i < EventStat.SECONDS_IN_24_HOURS * 2; i++) {
+            assertTrue(registry.insertAt(i, offsetStamp + i * 1000));
+        }
+
+        for (long key = 0; key < 1000; key++) {
+            int expected = 0;
+            for (long i = key; i < EventStat.SECONDS_IN_24_HOURS * 2; i += 1000) {
+                if (i > EventStat.SECONDS_IN_24_HOURS * 2 - EventStat.SECONDS_IN_24_HOURS) expected++;
+            }
+            assertEquals("Ключ " + key, expected, registry.countAt(key, EventStat.SECONDS_IN_24_HOURS, finalStamp));
+        }
+    }
+
+    @Test
+    public void testHotKeyPromotedUnderContention() throws ExecutionException, InterruptedException {
+        final long offsetStamp = System.currentTimeMillis();
+        final EventStatRegistry<String, Long> registry = new EventStatRegistry<>(stamp -> "hot", new ManualTimeSource(offsetStamp));
+        final int seconds = 2 * EventStat.SECONDS_IN_HOUR;
+        List<ForkJoinTask<Void>> taskList = new ArrayList<>();
+        for (int i = 0; i < seconds; i++) {
+            final long stamp = offsetStamp + i * 1000L;
+            for (int j = 0; j < 3; j++) {
+                taskList.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        registry.insertAt(stamp, stamp);
+                    }
+                }.fork());
+            }
+            if (i % 100 == 0) {
+                while (!taskList.isEmpty()) {
+                    taskList.remove(0).get();
+                }
+            }
+        }
+        while (!taskList.isEmpty()) {
+            taskList.remove(0).get();
+        }
+
+        long finalStamp = offsetStamp + (seconds - 1) * 1000L;
+        assertEquals(3 * EventStat.SECONDS_IN_MINUTE, registry.countAt("hot", EventStat.SECONDS_IN_MINUTE, finalStamp));
+        assertEquals(3 * EventStat.SECONDS_IN_HOUR, registry.countAt("hot", EventStat.SECONDS_IN_HOUR, finalStamp));
+        assertEquals(3 * seconds, registry.countAt("hot", EventStat.SECONDS_IN_24_HOURS, finalStamp));
+    }
+
+    @Test
+    public void testAdaptiveSlotRingGrowsToDense() {
+        final SlotRing ring = SlotRing.adaptive(1 << 17, EventStat.layoutOf(32, 0)); //длина суточного кольца секунд
+        for (int period = 0; period < 70_000; period++) {
+            assertTrue(ring.add(period, period % 7 + 1));
+        }
+        for (int period = 0; period < 70_000; period++) {
+            assertEquals(period % 7 + 1, ring.count(period));
+        }
+        assertEquals(0, ring.count(70_000));
+    }
+}
@@ -0,0 +1,145 @@
+package ru.yandex.money.test.semelit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EventStatSnapshotTest {
+
+    @Test
+    public void testSnapshotMatchesCounts() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> es = new EventStat<>(clock);
+        for (int i = 0; i < 2 * EventStat.SECONDS_IN_HOUR; i++) {
+            es.insert(i % 7);
+            clock.advance(1000);
+        }
+        final EventStatSnapshot snapshot = es.snapshot();
+        assertEquals(es.countInLastMinute(), snapshot.countInLastMinute());
+        assertEquals(es.countInLastHour(), snapshot.countInLastHour());
+        assertEquals(es.countInLastDay(), snapshot.countInLastDay());
+    }
+
+    @Test
+    public void testSnapshotIsAlignedToEpochSeconds() {
+        final long start = 1_500_000_000_250L;
+        final ManualTimeSource clock = new ManualTimeSource(start);
+        final EventStat<Object> es = new EventStat<>(clock);
+        es.insert(new Object());
+        clock.advance(10_000);
+        es.insert(new Object());
+
+        final EventStatSnapshot snapshot = es.snapshot();
+        assertEquals(1_500_000_010_000L, snapshot.getStamp());
+        assertEquals(1, snapshot.countBetween(1_500_000_000_000L, 1_500_000_000_999L));
+        assertEquals(1, snapshot.countBetween(1_500_000_010_000L, 1_500_000_010_000L));
+        assertEquals(0, snapshot.countBetween(1_500_000_001_000L, 1_500_000_009_999L));
+    }
+
+    @Test
+    public void testMergeAcrossNodes() {
+        final long start = System.currentTimeMillis() / 1000 * 1000;
+        final List<EventStatSnapshot> snapshots = new ArrayList<>();
+        for (int node = 0; node < 40; node++) {
+            final ManualTimeSource clock = new ManualTimeSource(start + node * 20); //узлы создаются в разные моменты одной секунды
+            final EventStat<Object> es = new EventStat<>(clock);
+            for (int i = 0; i < EventStat.SECONDS_IN_HOUR; i++) {
+                es.insert(node + 1);
+                clock.advance(1000);
+            }
+            snapshots.add(es.snapshot(EventStat.SECONDS_IN_HOUR));
+        }
+        final EventStatSnapshot merged = EventStatSnapshot.merge(snapshots);
+        final long perSecond = 40 * 41 / 2;
+        //первая секунда каждого узла уже вышла из часового окна
+        assertEquals(perSecond * (EventStat.SECONDS_IN_HOUR - 1), merged.countInLastDay());
+        assertEquals(perSecond * (EventStat.SECONDS_IN_HOUR - 1), merged.countInLastHour());
+        assertEquals(perSecond * (EventStat.SECONDS_IN_MINUTE - 1), merged.countInLastMinute());
+    }
+
+    @Test
+    public void testSparseSnapshotIsCompact() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> es = new EventStat<>(clock);
+        for (int i = 0; i < 1000; i++) {
+            es.insert(new Object());
+            clock.advance(60_000);
+        }
+        final byte[] bytes = es.snapshot().toByteArray();
+        assertTrue("Снимок занимает " + bytes.length + " байт", bytes.length < 4 * 1024);
+    }
+
+    @Test
+    public void testSerializationRoundTrip() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> es = new EventStat<>(clock);
+        for (int i = 0; i < 5000; i++) {
+            es.insert(i % 300);
+            clock.advance(i % 3 == 0 ? 17_000 : 1);
+        }
+        final EventStatSnapshot snapshot = es.snapshot();
+        final EventStatSnapshot restored = EventStatSnapshot.fromByteArray(snapshot.toByteArray());
+        assertEquals(snapshot.getStamp(), restored.getStamp());
+        assertEquals(snapshot.countInLastMinute(), restored.countInLastMinute());
+        assertEquals(snapshot.countInLastHour(), restored.countInLastHour());
+        assertEquals(snapshot.countInLastDay(), restored.countInLastDay());
+        assertEquals(es.countInLastDay(), restored.countInLastDay());
+    }
+
+    @Test
+    public void testNodesCreatedMidSlotShareEpochSlots() {
+        final long start = 1_500_000_000_000L;
+        final ManualTimeSource early = new ManualTimeSource(start + 100);
+        final ManualTimeSource late = new ManualTimeSource(start + 900);
+        final EventStat<Object> first = new EventStat<>(early);
+        final EventStat<Object> second = new EventStat<>(late);
+        early.set(start + 1100);
+        late.set(start + 1100);
+        first.insert(new Object());
+        second.insert(new Object());
+
+        final EventStatSnapshot merged = EventStatSnapshot.merge(first.snapshot(), second.snapshot());
+        assertEquals(2, merged.countBetween(start + 1000, start + 1999));
+        assertEquals(0, merged.countBetween(start, start + 999));
+    }
+
+    @Test
+    public void testMergeOfDistantSnapshots() {
+        final EventStatSnapshot old = EventStatSnapshot.of(0, 1000, 5, new long[] {1, 0, 2});
+        final EventStatSnapshot recent = EventStatSnapshot.of(1L << 50, 1000, (1L << 40) - 1, new long[] {3, 4});
+        final EventStatSnapshot other = EventStatSnapshot.of(1L << 50, 1000, 7, new long[] {5});
+
+        final EventStatSnapshot merged = EventStatSnapshot.merge(old, recent, other);
+        assertEquals(1L << 50, merged.getStamp());
+        assertEquals(1, merged.countBetween(5000, 5999));
+        assertEquals(7, merged.countBetween(7000, 7999));
+        assertEquals(8, merged.countBetween(0, 8000));
+        assertEquals(7, merged.countBetween(((1L << 40) - 1) * 1000, Long.MAX_VALUE));
+        assertEquals(15, EventStatSnapshot.fromByteArray(merged.toByteArray()).countBetween(Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnorderedSlotsAreRejected() {
+        //версия 1, слот 1000 мс, момент 0, два слота: 5 с счётчиком 1 и следом разность 0
+        EventStatSnapshot.fromByteArray(new byte[] {1, (byte) 0xE8, 0x07, 0, 2, 10, 1, 0, 1});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeCountIsRejected() {
+        //версия 1, слот 1000 мс, момент 0, один слот 5 со счётчиком -1 (десять байт varint)
+        final byte[] bytes = {1, (byte) 0xE8, 0x07, 0, 1, 10, -1, -1, -1, -1, -1, -1, -1, -1, -1, 1};
+        EventStatSnapshot.fromByteArray(bytes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedBytesAreRejected() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> es = new EventStat<>(clock);
+        es.insert(new Object());
+        final byte[] bytes = es.snapshot().toByteArray();
+        EventStatSnapshot.fromByteArray(java.util.Arrays.copyOf(bytes, bytes.length - 1));
+    }
+}
@@ -0,0 +1,77 @@
+package ru.yandex.money.test.semelit;
+
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class InsertStatsTest {
+
+    @Test
+    public void testDisabledByDefault() {
+        assertNull(new EventStat<>().getInsertStats());
+        assertNull(EventStat.builder().build().getInsertStats());
+    }
+
+    @Test
+    public void testInsertPathCounters() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = EventStat.builder().timeSource(clock).instrumented(true).build();
+        final InsertStats stats = es.getInsertStats();
+
+        assertTrue(es.insert(new Object()));
+        assertTrue(es.insert(new Object()));
+        final long resets = stats.getStaleSlotResets();
+        clock.advance(EventStat.MILLIS_IN_24_HOURS * 2);
+        assertTrue(es.insert(new Object()));
+        final long afterIdle = stats.getStaleSlotResets();
+        assertTrue("Слоты после простоя остались от прошлого оборота", afterIdle > resets);
+        assertTrue(es.insert(new Object()));
+        assertEquals("Второе событие в тот же слот ничего не сбрасывает", afterIdle, stats.getStaleSlotResets());
+
+        final long sealedStamp = clock.currentTimeMillis();
+        clock.advance(10_000);
+        assertEquals(2, es.countInLastMinute());
+        assertTrue(stats.getTotalsAdvances() > 0);
+        assertTrue("Событие в запечатанный слот", es.insertAt(new Object(), sealedStamp));
+        assertEquals(1, stats.getLateInserts());
+        assertEquals(0, stats.getLateRecounts());
+        assertEquals(3, es.countInLastMinute());
+        assertEquals("Суммы окон пересчитаны один раз", 1, stats.getLateRecounts());
+
+        assertFalse(es.insertAt(new Object(), offsetStamp));
+        assertEquals(1, stats.getRejectedInserts());
+        assertEquals(1, es.getRejectedCount());
+        assertEquals(0, stats.getStripeFolds());
+    }
+
+    @Test
+    public void testStripeFolds() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> es = EventStat.builder().timeSource(clock).striped(true).instrumented(true).build();
+        es.insert(new Object());
+        clock.advance(1000);
+        es.insert(new Object());
+        assertTrue(es.getInsertStats().getStripeFolds() > 0);
+        assertEquals(2, es.countInLastMinute());
+    }
+
+    @Test
+    public void testJmx() throws JMException {
+        final EventStat<Object> es = EventStat.builder().instrumented(true).build();
+        es.insert(new Object());
+        final ObjectName name = es.getInsertStats().registerMBean("payments");
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertEquals(0L, server.getAttribute(name, "RejectedInserts"));
+            assertEquals(es.getInsertStats().getStaleSlotResets(), server.getAttribute(name, "StaleSlotResets"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
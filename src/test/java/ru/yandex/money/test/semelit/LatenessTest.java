@@ -0,0 +1,93 @@
+package ru.yandex.money.test.semelit;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LatenessTest {
+
+    @Test
+    public void testSkewedProducersLandInTheirSlots() {
+        final long offsetStamp = System.currentTimeMillis() / 1000 * 1000; //слоты выровнены по секундам эпохи
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = EventStat.builder().timeSource(clock).allowedLateness(Duration.ofSeconds(30)).build();
+        final Random random = new Random(17);
+        final int[] perSecond = new int[600];
+        for (int i = 0; i < 20_000; i++) {
+            clock.advance(random.nextInt(60));
+            //производитель с отставанием до 30 секунд
+            long stamp = clock.currentTimeMillis() - random.nextInt(30_000);
+            if (stamp >= offsetStamp && es.insertAt(new Object(), stamp)) {
+                perSecond[(int) ((stamp - offsetStamp) / 1000)]++;
+            }
+        }
+
+        final int lastSecond = (int) ((clock.currentTimeMillis() - offsetStamp) / 1000);
+        for (int second = 60; second <= lastSecond; second += 13) {
+            int expected = 0;
+            for (int s = second - 59; s <= second; s++) {
+                expected += perSecond[s];
+            }
+            assertEquals("Минута до секунды " + second, expected, es.countAt(EventStat.SECONDS_IN_MINUTE, offsetStamp + second * 1000L));
+        }
+    }
+
+    @Test
+    public void testEventsBeyondAllowedLatenessRejected() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = EventStat.builder().timeSource(clock).allowedLateness(Duration.ofSeconds(30)).build();
+        clock.advance(60_000);
+        assertTrue(es.insert(new Object()));
+        assertTrue(es.insertAt(new Object(), clock.currentTimeMillis() - 30_000));
+        assertFalse(es.insertAt(new Object(), clock.currentTimeMillis() - 30_001));
+        assertEquals(1, es.getRejectedCount());
+        assertEquals(2, es.countInLastMinute());
+    }
+
+    @Test
+    public void testCountAtAnyStampInsideRetention() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = new EventStat<>(clock);
+        for (int minute = 0; minute < 120; minute++) {
+            es.insertCountAt(minute, offsetStamp + minute * EventStat.MILLIS_IN_MINUTE);
+        }
+        clock.advance(2 * EventStat.MILLIS_IN_HOUR);
+        assertEquals(42, es.countAt(EventStat.SECONDS_IN_MINUTE, offsetStamp + 42 * EventStat.MILLIS_IN_MINUTE));
+        assertEquals(59 * 60 / 2, es.countAt(EventStat.SECONDS_IN_HOUR, offsetStamp + 59 * EventStat.MILLIS_IN_MINUTE));
+        assertEquals(0, es.countAt(EventStat.SECONDS_IN_MINUTE, offsetStamp - 1000));
+        assertEquals((61 + 119) * 59 / 2, es.countInLastHour());
+
+        //часть окна старше глубины хранения уже не хранится
+        clock.advance(EventStat.MILLIS_IN_24_HOURS - 30 * EventStat.MILLIS_IN_MINUTE);
+        es.insert(new Object());
+        assertEquals((90 + 119) * 30 / 2, es.countAt(EventStat.SECONDS_IN_HOUR, offsetStamp + 119 * EventStat.MILLIS_IN_MINUTE));
+    }
+
+    @Test
+    public void testEventsStampedBeforeCreation() {
+        final long createdStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(createdStamp);
+        final EventStat<Object> es = new EventStat<>(clock);
+        assertTrue(es.insertAt(new Object(), createdStamp - 1));
+        assertTrue(es.insertAt(new Object(), createdStamp - 23 * EventStat.MILLIS_IN_HOUR));
+        assertFalse(es.insertAt(new Object(), createdStamp - EventStat.MILLIS_IN_24_HOURS - 1000));
+        assertEquals(1, es.countInLastMinute());
+        assertEquals(2, es.countInLastDay());
+
+        final EventStat<Object> minute = EventStat.builder().timeSource(clock).retention(Duration.ofMinutes(1)).build();
+        assertTrue(minute.insertAt(new Object(), createdStamp - 59_000));
+        assertFalse(minute.insertAt(new Object(), createdStamp - 61_000));
+        assertEquals(1, minute.countInLastMinute());
+        assertEquals(1, minute.getRejectedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLatenessBeyondRetention() {
+        EventStat.builder().retention(Duration.ofHours(1)).allowedLateness(Duration.ofHours(2)).build();
+    }
+}
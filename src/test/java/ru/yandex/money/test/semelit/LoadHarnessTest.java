@@ -0,0 +1,87 @@
+package ru.yandex.money.test.semelit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+public class LoadHarnessTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void assertAccurate(LoadHarness.Report report) {
+        for (int i = 0; i < report.getWindowsInSeconds().length; i++) {
+            assertEquals(report.toString(), report.getExpected(i), report.getActual(i));
+        }
+    }
+
+    @Test
+    public void testSyntheticProfileWithIdleGap() throws InterruptedException {
+        final long offsetStamp = System.currentTimeMillis();
+        final TimestampLog log = TimestampLog.synthetic(offsetStamp, 7,
+                new TimestampLog.Segment(Duration.ofMinutes(30), 50.5),
+                new TimestampLog.Segment(Duration.ofHours(5), 0),
+                new TimestampLog.Segment(Duration.ofSeconds(10), 5000),
+                new TimestampLog.Segment(Duration.ofMinutes(20), 10));
+        assertEquals(30 * 60 * 50.5 + 10 * 5000 + 20 * 60 * 10, log.size(), 30 * 60 * 0.1);
+
+        final LoadHarness.Report report = LoadHarness.replay(log, 4, EventStat.builder());
+        assertEquals(log.size(), report.getEvents());
+        assertEquals(log.size(), report.getLatencyNanos().getTotalCount());
+        assertEquals(0, report.getRejected());
+        assertTrue(report.getThroughput() > 0);
+        assertArrayEquals(new int[] {EventStat.SECONDS_IN_MINUTE, EventStat.SECONDS_IN_HOUR, EventStat.SECONDS_IN_24_HOURS},
+                report.getWindowsInSeconds());
+        assertAccurate(report);
+        assertEquals(log.size(), report.getExpected(2));
+    }
+
+    @Test
+    public void testMappedLogRoundTrip() throws IOException, InterruptedException {
+        final long offsetStamp = System.currentTimeMillis();
+        final TimestampLog generated = TimestampLog.synthetic(offsetStamp, 11,
+                new TimestampLog.Segment(Duration.ofMinutes(10), 100),
+                new TimestampLog.Segment(Duration.ofHours(2), 0),
+                new TimestampLog.Segment(Duration.ofMinutes(10), 100));
+        final Path path = folder.getRoot().toPath().resolve("stamps.bin");
+        TimestampLog.write(path, generated);
+
+        final TimestampLog mapped = TimestampLog.map(path);
+        assertEquals(generated.size(), mapped.size());
+        for (int i = 0; i < mapped.size(); i += 997) {
+            assertEquals(generated.stampAt(i), mapped.stampAt(i));
+        }
+        final LoadHarness.Report report = LoadHarness.replay(mapped, 2, EventStat.builder().striped(true));
+        assertAccurate(report);
+        assertEquals(10 * 60 * 100, report.getExpected(1));
+    }
+
+    @Test
+    public void testLateEventsBeyondRetentionAreReportedAsRejected() throws InterruptedException {
+        final long offsetStamp = System.currentTimeMillis();
+        final TimestampLog log = TimestampLog.of(offsetStamp, offsetStamp + 2 * EventStat.MILLIS_IN_MINUTE, offsetStamp + 1000);
+        final LoadHarness.Report report = LoadHarness.replay(log, 1, EventStat.builder().retention(Duration.ofMinutes(1)));
+        assertEquals(1, report.getRejected());
+        assertArrayEquals(new int[] {EventStat.SECONDS_IN_MINUTE}, report.getWindowsInSeconds());
+        assertAccurate(report);
+    }
+
+    @Test
+    public void testCallerBuilderKeepsItsClock() throws InterruptedException {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp + EventStat.MILLIS_IN_HOUR);
+        final EventStat.Builder<Object> builder = EventStat.builder().timeSource(clock);
+        LoadHarness.replay(TimestampLog.of(offsetStamp, offsetStamp + 1000), 1, builder);
+
+        final EventStat<Object> es = builder.build();
+        assertTrue(es.insert(new Object()));
+        assertEquals("Статистика идёт по часам вызывающего, а не воспроизведения",
+                1, es.countBetween(clock.currentTimeMillis(), clock.currentTimeMillis()));
+    }
+}
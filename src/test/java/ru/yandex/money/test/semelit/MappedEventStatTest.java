@@ -0,0 +1,236 @@
+package ru.yandex.money.test.semelit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+public class MappedEventStatTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSurvivesReopen() throws IOException {
+        final Path path = folder.getRoot().toPath().resolve("stat.bin");
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> first = EventStat.mapped(path, clock);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(first.insert(new Object()));
+            clock.advance(1000);
+        }
+        first.flush();
+        assertEquals(100, first.countInLastHour());
+
+        final EventStat<Object> second = EventStat.mapped(path, clock);
+        assertEquals(first.countInLastMinute(), second.countInLastMinute());
+        assertEquals(100, second.countInLastHour());
+        assertTrue(second.insert(new Object()));
+        assertEquals(101, second.countInLastDay());
+    }
+
+    @Test
+    public void testSecondsMissedWhileDownAreNotCounted() throws IOException {
+        final Path path = folder.getRoot().toPath().resolve("stat.bin");
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> first = EventStat.mapped(path, clock);
+        for (int i = 0; i < 10; i++) {
+            first.insert(new Object());
+            clock.advance(EventStat.MILLIS_IN_HOUR);
+        }
+        first.flush();
+
+        clock.advance(EventStat.MILLIS_IN_24_HOURS); //процесс не работал больше суток
+        final EventStat<Object> second = EventStat.mapped(path, clock);
+        assertEquals(0, second.countInLastDay());
+        assertTrue(second.insert(new Object()));
+        assertEquals(1, second.countInLastMinute());
+        assertEquals(1, second.countInLastDay());
+    }
+
+    @Test
+    public void testLateInsertIsRejectedAfterReopen() throws IOException {
+        final Path path = folder.getRoot().toPath().resolve("stat.bin");
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final long start = clock.currentTimeMillis();
+        final EventStat<Object> first = EventStat.mapped(path, clock);
+        clock.advance(EventStat.MILLIS_IN_24_HOURS + 1000);
+        assertTrue(first.insert(new Object()));
+
+        final EventStat<Object> second = EventStat.mapped(path, clock);
+        assertFalse(second.insertAt(new Object(), start));
+    }
+
+    @Test
+    public void testEventsStampedBeforeCreationSurviveReopen() throws IOException {
+        final Path path = folder.getRoot().toPath().resolve("stat.bin");
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final long createdStamp = clock.currentTimeMillis();
+        final EventStat<Object> first = EventStat.mapped(path, clock);
+        assertTrue(first.insertAt(new Object(), createdStamp - EventStat.MILLIS_IN_HOUR));
+        first.flush();
+
+        clock.advance(1000);
+        final EventStat<Object> second = EventStat.mapped(path, clock);
+        assertEquals(1, second.countInLastDay());
+        assertEquals(1, second.countBetween(createdStamp - EventStat.MILLIS_IN_HOUR, createdStamp - EventStat.MILLIS_IN_HOUR));
+        assertTrue(second.insertAt(new Object(), createdStamp - 2 * EventStat.MILLIS_IN_HOUR));
+        assertEquals(2, second.countInLastDay());
+    }
+
+    @Test(expected = IOException.class)
+    public void testForeignFileIsRejected() throws IOException {
+        final Path path = folder.getRoot().toPath().resolve("foreign.bin");
+        Files.write(path, new byte[] {1, 2, 3});
+        EventStat.mapped(path);
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptedMagicIsRejected() throws IOException {
+        final Path path = folder.getRoot().toPath().resolve("stat.bin");
+        EventStat.mapped(path).flush();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[8]), 0);
+        }
+        EventStat.mapped(path);
+    }
+
+    @Test
+    public void testBuilderConfigurationIsPersisted() throws IOException {
+        final Path path = folder.getRoot().toPath().resolve("stat.bin");
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat.Builder<Object> builder = EventStat.builder()
+                .timeSource(clock)
+                .slotWidth(Duration.ofMinutes(1))
+                .retention(Duration.ofDays(7));
+        final EventStat<Object> first = builder.buildMapped(path);
+        for (int i = 0; i < 3 * 24 * 60; i++) {
+            first.insert(new Object());
+            clock.advance(EventStat.MILLIS_IN_MINUTE);
+        }
+        first.flush();
+        assertEquals(3 * 24 * 60, builder.buildMapped(path).countInLast(Duration.ofDays(7)));
+    }
+
+    @Test
+    public void testNarrowCountsVersionIsUpgraded() throws IOException {
+        final Path path = folder.getRoot().toPath().resolve("stat.bin");
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> first = EventStat.mapped(path, clock);
+        for (int i = 0; i < 3 * EventStat.SECONDS_IN_HOUR; i++) {
+            assertTrue(first.insert(new Object()));
+            clock.advance(1000);
+        }
+        first.flush();
+        //переупаковываем агрегаты в раскладку версии 2: номер периода в старших 32 битах на всех уровнях
+        final int[] lengths = EventStat.ringLengths(EventStat.SECONDS_IN_24_HOURS);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()).order(ByteOrder.nativeOrder());
+            buffer.putInt(8, MappedEventStore.NARROW_COUNTS_VERSION);
+            int base = 64 + lengths[0] * Long.BYTES;
+            for (int level = 1; level < lengths.length; level++) {
+                final int countBits = 32 + level * EventStat.FANOUT_SHIFT;
+                for (int index = 0; index < lengths[level]; index++) {
+                    final long slot = buffer.getLong(base + index * Long.BYTES);
+                    final long count = slot & ((1L << countBits) - 1);
+                    buffer.putLong(base + index * Long.BYTES, (slot >>> countBits) << 32 | count);
+                }
+                base += lengths[level] * Long.BYTES;
+            }
+        }
+
+        final EventStat<Object> second = EventStat.mapped(path, clock);
+        assertEquals(3 * EventStat.SECONDS_IN_HOUR, second.countInLast(Duration.ofHours(5)));
+        assertEquals(EventStat.SECONDS_IN_HOUR, second.countAt(EventStat.SECONDS_IN_HOUR, clock.currentTimeMillis() - EventStat.MILLIS_IN_HOUR));
+        assertTrue(second.insert(new Object()));
+        assertEquals(3 * EventStat.SECONDS_IN_HOUR + 1, second.countInLastDay());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer version = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.nativeOrder());
+            channel.read(version, 8);
+            assertEquals(MappedEventStore.VERSION, version.getInt(0));
+        }
+    }
+
+    @Test
+    public void testFixedPeriodBitsVersionIsUpgraded() throws IOException {
+        final Path path = folder.getRoot().toPath().resolve("stat.bin");
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat.Builder<Object> builder = EventStat.builder().timeSource(clock)
+                .slotWidth(Duration.ofMinutes(1)).retention(Duration.ofDays(7));
+        final EventStat<Object> first = builder.buildMapped(path);
+        for (int i = 0; i < 3 * 60; i++) {
+            assertTrue(first.insert(new Object()));
+            clock.advance(EventStat.MILLIS_IN_MINUTE);
+        }
+        assertEquals(3 * 60, first.countInLastDay()); //печать закрывшихся слотов тоже переупаковывается
+        first.flush();
+        //переупаковываем все уровни в раскладку версии 3: номер базового слота всегда в старших 32 битах
+        final int[] lengths = EventStat.ringLengths(7 * 24 * 60);
+        final int periodBits = EventStat.periodBits(EventStat.MILLIS_IN_MINUTE, 7 * 24 * 60);
+        assertTrue(periodBits < 32);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()).order(ByteOrder.nativeOrder());
+            buffer.putInt(8, MappedEventStore.FIXED_PERIOD_BITS_VERSION);
+            buffer.putInt(60, 0);
+            int base = 64;
+            for (int level = 0; level < lengths.length; level++) {
+                final int countBits = Long.SIZE - periodBits + level * EventStat.FANOUT_SHIFT;
+                final int fixedCountBits = 32 + level * EventStat.FANOUT_SHIFT;
+                for (int index = 0; index < lengths[level]; index++) {
+                    final long slot = buffer.getLong(base + index * Long.BYTES);
+                    final long count = slot & ((1L << (countBits - 1)) - 1);
+                    final long seal = (slot >>> (countBits - 1) & 1) << (fixedCountBits - 1);
+                    buffer.putLong(base + index * Long.BYTES, (slot >>> countBits) << fixedCountBits | seal | count);
+                }
+                base += lengths[level] * Long.BYTES;
+            }
+        }
+
+        final EventStat<Object> second = builder.buildMapped(path);
+        assertEquals(3 * 60, second.countInLastDay());
+        assertEquals(60, second.countAt(EventStat.SECONDS_IN_HOUR, clock.currentTimeMillis() - EventStat.MILLIS_IN_HOUR));
+        assertTrue(second.insert(new Object()));
+        second.flush();
+        assertEquals(3 * 60 + 1, builder.buildMapped(path).countInLast(Duration.ofDays(7)));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.nativeOrder());
+            channel.read(header, 0);
+            assertEquals(MappedEventStore.VERSION, header.getInt(8));
+            assertEquals("Файл версии 3 сохраняет свою раскладку", 32, header.getInt(60));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testFixedRingsVersionIsRejected() throws IOException {
+        final Path path = folder.getRoot().toPath().resolve("stat.bin");
+        EventStat.mapped(path).flush();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            ByteBuffer version = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.nativeOrder());
+            version.putInt(0, MappedEventStore.FIXED_RINGS_VERSION);
+            channel.write(version, 8);
+        }
+        EventStat.mapped(path);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCompactModeIsRejected() throws IOException {
+        EventStat.builder().compact(true).buildMapped(folder.getRoot().toPath().resolve("stat.bin"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testSlotWidthMismatchIsRejected() throws IOException {
+        final Path path = folder.getRoot().toPath().resolve("stat.bin");
+        EventStat.mapped(path).flush();
+        EventStat.builder().slotWidth(Duration.ofMillis(500)).retention(Duration.ofHours(12)).buildMapped(path);
+    }
+}
@@ -0,0 +1,148 @@
+package ru.yandex.money.test.semelit;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class PrometheusExporterTest {
+
+    private static String render(PrometheusExporter exporter) {
+        ByteBuffer buffer = ByteBuffer.allocate(exporter.maxLength());
+        exporter.writeTo(buffer);
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testTextFormat() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> payments = new EventStat<>(clock);
+        payments.insertCountAt(7, offsetStamp);
+        clock.advance(EventStat.MILLIS_IN_HOUR);
+        payments.insertCountAt(3, clock.currentTimeMillis());
+        assertFalse(payments.insertAt(new Object(), offsetStamp - EventStat.MILLIS_IN_24_HOURS - 1000));
+
+        final PrometheusExporter exporter = new PrometheusExporter();
+        exporter.register("payments", payments);
+        exporter.register("refunds", new EventStat<>(clock));
+        assertEquals("# TYPE payments gauge\n" +
+                "payments{window=\"1m\"} 3\n" +
+                "payments{window=\"1h\"} 3\n" +
+                "payments{window=\"1d\"} 10\n" +
+                "# TYPE payments_rejected_total counter\n" +
+                "payments_rejected_total 1\n" +
+                "# TYPE refunds gauge\n" +
+                "refunds{window=\"1m\"} 0\n" +
+                "refunds{window=\"1h\"} 0\n" +
+                "refunds{window=\"1d\"} 0\n" +
+                "# TYPE refunds_rejected_total counter\n" +
+                "refunds_rejected_total 0\n", render(exporter));
+    }
+
+    @Test
+    public void testPutLong() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        for (long value : new long[] {0, 9, 10, -1, 1234567890123L, Long.MAX_VALUE, -Long.MAX_VALUE}) {
+            buffer.clear();
+            PrometheusExporter.putLong(buffer, value);
+            assertEquals(Long.toString(value), new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void testWriteToChannel() throws IOException {
+        final PrometheusExporter exporter = new PrometheusExporter();
+        final EventStat<Object> es = new EventStat<>(new ManualTimeSource(System.currentTimeMillis()));
+        es.insert(new Object());
+        exporter.register("events", es);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int length = exporter.writeTo(Channels.newChannel(out));
+        assertEquals(length, out.size());
+        assertEquals(render(exporter), new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testHttpEndpoint() throws IOException {
+        final PrometheusExporter exporter = new PrometheusExporter();
+        final EventStat<Object> es = new EventStat<>(new ManualTimeSource(System.currentTimeMillis()));
+        es.insertCountAt(42, System.currentTimeMillis());
+        exporter.register("events", es);
+
+        HttpServer server = exporter.serve(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        try {
+            URL url = new URL("http", "127.0.0.1", server.getAddress().getPort(), "/metrics");
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(PrometheusExporter.CONTENT_TYPE, connection.getContentType());
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] chunk = new byte[4096];
+                for (int read; (read = in.read(chunk)) > 0; ) {
+                    body.write(chunk, 0, read);
+                }
+            }
+            assertEquals(render(exporter), new String(body.toByteArray(), StandardCharsets.US_ASCII));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testScrapeDoesNotAllocate() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final PrometheusExporter exporter = new PrometheusExporter();
+        for (int i = 0; i < 5000; i++) {
+            //минутные слоты, чтобы 5000 суточных колец уместились в куче теста
+            EventStat<Object> es = EventStat.builder().timeSource(clock).slotWidth(Duration.ofMinutes(1)).build();
+            es.insertCountAt(i, clock.currentTimeMillis());
+            exporter.register("metric_" + i, es);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(exporter.maxLength());
+        for (int i = 0; i < 20; i++) { //прогрев
+            buffer.clear();
+            exporter.writeTo(buffer);
+        }
+
+        final long thread = Thread.currentThread().getId();
+        final long before = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 10; i++) {
+            buffer.clear();
+            exporter.writeTo(buffer);
+        }
+        final long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+        assertTrue("Выгрузка создала " + allocated + " байт", allocated < 1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidName() {
+        new PrometheusExporter().register("payments-per-merchant", new EventStat<>());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateName() {
+        PrometheusExporter exporter = new PrometheusExporter();
+        exporter.register("payments", new EventStat<>());
+        exporter.register("payments", new EventStat<>());
+    }
+}
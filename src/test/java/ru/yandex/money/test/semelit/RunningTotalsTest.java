@@ -0,0 +1,185 @@
+package ru.yandex.money.test.semelit;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RunningTotalsTest {
+
+    @Test
+    public void testTryAcquireLimitAndExpiry() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> es = new EventStat<>(clock);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(es.tryAcquire(5, Duration.ofMinutes(1)));
+            clock.advance(1000);
+        }
+        assertFalse(es.tryAcquire(5, Duration.ofMinutes(1)));
+        assertTrue("Другое окно считается отдельно", es.tryAcquire(6, Duration.ofHours(1)));
+
+        clock.advance(EventStat.MILLIS_IN_MINUTE - 6000);
+        assertFalse("Первое событие ещё в окне", es.tryAcquire(6, Duration.ofMinutes(1)));
+        clock.advance(1000);
+        assertTrue("Первое событие вышло из окна", es.tryAcquire(6, Duration.ofMinutes(1)));
+        assertEquals(7, es.countInLastHour());
+    }
+
+    @Test
+    public void testConcurrentTryAcquireNeverExceedsLimit() throws ExecutionException, InterruptedException {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> es = new EventStat<>(clock);
+        List<ForkJoinTask<Boolean>> taskList = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            taskList.add(new RecursiveTask<Boolean>() {
+                @Override
+                protected Boolean compute() {
+                    return es.tryAcquire(100, Duration.ofMinutes(1));
+                }
+            }.fork());
+        }
+        int acquired = 0;
+        for (ForkJoinTask<Boolean> task : taskList) {
+            if (task.get()) acquired++;
+        }
+        assertEquals(100, acquired);
+        assertEquals(100, es.countInLastMinute());
+    }
+
+    @Test
+    public void testLateInsertIntoSealedSlot() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = new EventStat<>(clock);
+        for (int i = 0; i < 30; i++) {
+            assertTrue(es.insertAt(new Object(), offsetStamp + i * 1000L));
+        }
+        clock.advance(30_000);
+        assertFalse("30 событий уже в окне", es.tryAcquire(30, Duration.ofMinutes(1)));
+
+        //опоздавшие события в давно запечатанные слоты
+        for (int i = 0; i < 10; i++) {
+            assertTrue(es.insertAt(new Object(), offsetStamp + i * 1000L));
+        }
+        assertEquals(40, es.countInLastMinute());
+        assertFalse(es.tryAcquire(40, Duration.ofMinutes(1)));
+        assertTrue(es.tryAcquire(41, Duration.ofMinutes(1)));
+
+        //первые 10 секунд выходят из окна вместе с опоздавшими событиями
+        clock.advance(EventStat.MILLIS_IN_MINUTE - 30_000 + 10_000);
+        assertEquals(20, es.countInLastMinute());
+        assertFalse(es.tryAcquire(20, Duration.ofMinutes(1)));
+        assertTrue(es.tryAcquire(21, Duration.ofMinutes(1)));
+    }
+
+    @Test
+    public void testLateInsertsDoNotTakeTotalsMonitor() throws Exception {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = new EventStat<>(clock);
+        clock.advance(30_000);
+        assertEquals(0, es.countInLastMinute());
+
+        //монитор итогов занят, а опоздавшие вставки из нескольких потоков всё равно проходят
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            synchronized (es.totals()) {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    futures.add(executor.submit(() -> {
+                        for (int i = 0; i < 1000; i++) {
+                            assertTrue(es.insertAt(new Object(), offsetStamp + i % 20 * 1000L));
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get(10, TimeUnit.SECONDS);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(4000, es.countInLastMinute());
+    }
+
+    @Test
+    public void testThresholdListenerFiresOnceAndRearms() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> es = new EventStat<>(clock);
+        final AtomicInteger fired = new AtomicInteger();
+        es.addThresholdListener(Duration.ofSeconds(10), 3, (window, threshold, count) -> {
+            assertEquals(Duration.ofSeconds(10), window);
+            assertEquals(3, threshold);
+            assertTrue(count >= threshold);
+            fired.incrementAndGet();
+        });
+
+        for (int i = 0; i < 5; i++) {
+            es.insert(new Object());
+        }
+        assertEquals(1, fired.get());
+
+        clock.advance(20_000);
+        es.insert(new Object()); //окно опустело, порог снова взведён
+        assertEquals(1, fired.get());
+        es.insert(new Object());
+        es.insert(new Object());
+        assertEquals(2, fired.get());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testTryAcquireNotSupportedForAdaptiveRings() {
+        new EventStat<>(new ManualTimeSource(System.currentTimeMillis()), false, true).tryAcquire(1, Duration.ofMinutes(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTryAcquireWindowBeyondRetention() {
+        new EventStat<>().tryAcquire(1, Duration.ofDays(2));
+    }
+
+    @Test
+    public void testFixedWindowsSameAsHierarchicalCount() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = new EventStat<>(clock);
+        final Random random = new Random(13);
+        for (int i = 0; i < 20_000; i++) {
+            clock.advance(random.nextInt(10_000));
+            //часть событий опаздывает на несколько секунд, т.е. попадает в уже запечатанные слоты
+            es.insertAt(new Object(), clock.currentTimeMillis() - (random.nextInt(4) == 0 ? random.nextInt(10_000) : 0));
+            if (i % 97 == 0) {
+                assertEquals(es.countInLast(Duration.ofMinutes(1)), es.countInLastMinute());
+                assertEquals(es.countInLast(Duration.ofHours(1)), es.countInLastHour());
+                assertEquals(es.countInLast(Duration.ofDays(1)), es.countInLastDay());
+            }
+        }
+    }
+
+    @Test
+    public void testTotalsAfterLongQuietPeriodOfQueries() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = new EventStat<>(clock);
+        assertEquals(0, es.countInLastDay());
+        //вставки без подсчётов дольше суток: кольцо делает почти полный оборот, пока итоги стоят на месте
+        for (int i = 0; i < 100_000; i++) {
+            clock.advance(1000);
+            es.insert(new Object());
+        }
+        assertEquals(EventStat.SECONDS_IN_24_HOURS, es.countInLastDay());
+        assertEquals(EventStat.SECONDS_IN_HOUR, es.countInLastHour());
+        assertEquals(EventStat.SECONDS_IN_MINUTE, es.countInLastMinute());
+    }
+}
@@ -0,0 +1,190 @@
+package ru.yandex.money.test.semelit;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SlotFeedTest {
+    private static final Duration HOUR = Duration.ofHours(1);
+
+    /**
+     * Копирует пакеты, пакет переиспользуется лентой
+     */
+    private static final class Collector implements SlotFeed.Listener {
+        final List<Long> slots = new ArrayList<>();
+        final List<Long> counts = new ArrayList<>();
+        int batches;
+
+        @Override
+        public synchronized void slotsClosed(SlotFeed.Batch batch) {
+            batches++;
+            for (int i = 0; i < batch.size(); i++) {
+                slots.add(batch.slot(i));
+                counts.add(batch.count(i));
+            }
+        }
+    }
+
+    @Test
+    public void testEachClosedSlotOnce() {
+        final long offsetStamp = System.currentTimeMillis() / 1000 * 1000;
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = new EventStat<>(clock);
+        final Collector collector = new Collector();
+        try (SlotFeed feed = new SlotFeed(HOUR)) {
+            feed.subscribe(es, 1024, collector);
+            for (int second = 0; second < 10; second++) {
+                clock.set(offsetStamp + second * 1000L);
+                es.insertCountAt(second + 1, clock.currentTimeMillis());
+                es.insertCountAt(second + 1, clock.currentTimeMillis());
+            }
+            clock.advance(20_000);
+            es.insert(new Object()); //вставка закрывает все прошлые слоты
+            assertEquals(111, es.countInLastMinute()); //подсчёт не закрывает их повторно
+            feed.flush();
+            feed.flush();
+
+            //первым закрывается слот перед подпиской, затем десять слотов с событиями и восемнадцать пустых
+            assertEquals(1 + 10 + 18, collector.slots.size());
+            assertEquals(1, collector.batches);
+            for (int i = 0; i < collector.slots.size(); i++) {
+                final int second = i - 1;
+                assertEquals(Long.valueOf(offsetStamp / 1000 + second), collector.slots.get(i));
+                assertEquals(Long.valueOf(second >= 0 && second < 10 ? 2 * (second + 1) : 0), collector.counts.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testSlotsClosedBySweeper() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final Collector collector = new Collector();
+        try (SlotFeed feed = new SlotFeed(HOUR); SlotSweeper sweeper = new SlotSweeper(HOUR)) {
+            final EventStat<Object> es = EventStat.builder().timeSource(clock).sweeper(sweeper).build();
+            feed.subscribe(es, 16, collector);
+            es.insertCountAt(7, clock.currentTimeMillis());
+            feed.flush();
+            assertTrue("Слот ещё не закрыт", collector.slots.isEmpty());
+
+            clock.advance(10_000);
+            sweeper.sweepNow();
+            feed.flush();
+            //слот перед подпиской, слот с событиями и восемь пустых
+            assertEquals(10, collector.slots.size());
+            assertEquals(Long.valueOf(7), collector.counts.get(1));
+            assertEquals(7, collector.counts.stream().mapToLong(Long::longValue).sum());
+        }
+    }
+
+    @Test
+    public void testFeedClosesSlotsWithoutInserts() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> es = new EventStat<>(clock);
+        final Collector collector = new Collector();
+        try (SlotFeed feed = new SlotFeed(HOUR)) {
+            feed.subscribe(es, 16, collector);
+            es.insertCountAt(3, clock.currentTimeMillis());
+            clock.advance(5000);
+            feed.flush(); //ни вставок, ни подсчётов, ни уборщика: слоты закрывает сам поток ленты
+            assertEquals(5, collector.slots.size());
+            assertEquals(Long.valueOf(3), collector.counts.get(1));
+        }
+    }
+
+    @Test
+    public void testLongGapIsCountedAsDropped() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> es = new EventStat<>(clock);
+        final Collector collector = new Collector();
+        try (SlotFeed feed = new SlotFeed(HOUR)) {
+            final SlotFeed.Subscription subscription = feed.subscribe(es, 16, collector);
+            clock.advance(EventStat.MILLIS_IN_HOUR);
+            feed.flush();
+            //за час закрылись 3600 слотов, в очередь помещаются последние 16
+            assertEquals(16, collector.slots.size());
+            assertEquals(3600 - 16, subscription.getDroppedCount());
+            assertEquals(collector.slots.get(0) + 15, (long) collector.slots.get(15));
+        }
+    }
+
+    @Test
+    public void testStripedSlotsIncludeUnfoldedCells() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> es = new EventStat<>(clock, true);
+        final Collector collector = new Collector();
+        try (SlotFeed feed = new SlotFeed(HOUR)) {
+            feed.subscribe(es, 16, collector);
+            for (int i = 0; i < 100; i++) {
+                es.insert(new Object());
+            }
+            clock.advance(10_000);
+            es.insert(new Object());
+            feed.flush();
+            assertEquals(10, collector.slots.size());
+            assertEquals(Long.valueOf(100), collector.counts.get(1));
+        }
+    }
+
+    @Test
+    public void testSlowSubscriberDoesNotBlockInserts() throws InterruptedException {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = new EventStat<>(clock);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger delivered = new AtomicInteger();
+        try (SlotFeed feed = new SlotFeed(Duration.ofMillis(1))) {
+            final SlotFeed.Subscription subscription = feed.subscribe(es, 4, batch -> {
+                delivered.set(batch.size());
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            clock.advance(5000);
+            es.insert(new Object());
+            clock.advance(5000);
+            es.insert(new Object()); //слоты закрываются, поток ленты застревает в получателе
+            assertTrue(entered.await(2, TimeUnit.SECONDS));
+
+            for (int i = 0; i < 100; i++) {
+                clock.advance(1000);
+                assertTrue(es.insert(new Object()));
+            }
+            //закрылись 110 слотов: часть доставлена до того, как получатель застрял, четыре ждут в очереди
+            assertEquals(110 - delivered.get() - 4, subscription.getDroppedCount());
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testClosedSubscriptionIsNotDelivered() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> es = new EventStat<>(clock);
+        final Collector collector = new Collector();
+        try (SlotFeed feed = new SlotFeed(HOUR)) {
+            feed.subscribe(es, 16, collector).close();
+            es.insert(new Object());
+            clock.advance(10_000);
+            es.insert(new Object());
+            feed.flush();
+            assertTrue(collector.slots.isEmpty());
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testCompactStatIsRejected() {
+        try (SlotFeed feed = new SlotFeed(HOUR)) {
+            feed.subscribe(EventStat.builder().compact(true).build(), 16, batch -> { });
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ru.yandex.money.test.semelit;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+public class SlotSweeperTest {
+
+    @Test
+    public void testSweepAdvancesTotalsAheadOfCount() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        try (SlotSweeper sweeper = new SlotSweeper(Duration.ofDays(1))) {
+            final EventStat<Object> es = EventStat.builder().timeSource(clock).instrumented(true).sweeper(sweeper).build();
+            es.insertCountAt(5, clock.currentTimeMillis());
+            clock.advance(EventStat.MILLIS_IN_HOUR);
+            es.insert(new Object());
+
+            sweeper.sweepNow();
+            final long advances = es.getInsertStats().getTotalsAdvances();
+            assertEquals(6, es.countInLastDay());
+            assertEquals(1, es.countInLastHour());
+            assertEquals("Подсчёту не осталось что продвигать", advances, es.getInsertStats().getTotalsAdvances());
+        }
+    }
+
+    @Test
+    public void testBackgroundSweep() throws InterruptedException {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        try (SlotSweeper sweeper = new SlotSweeper(Duration.ofMillis(5))) {
+            final EventStat<Object> es = EventStat.builder().timeSource(clock).instrumented(true).sweeper(sweeper).build();
+            clock.advance(EventStat.MILLIS_IN_MINUTE);
+            final long deadline = System.currentTimeMillis() + 2000;
+            while (es.getInsertStats().getTotalsAdvances() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, es.getInsertStats().getTotalsAdvances());
+        }
+    }
+
+    @Test
+    public void testSweepWithoutTotalsIsNoop() {
+        try (SlotSweeper sweeper = new SlotSweeper(Duration.ofDays(1))) {
+            sweeper.register(new EventStat<>(TimeSource.SYSTEM, false, true)); //адаптивные кольца итогов не ведут
+            sweeper.sweepNow();
+        }
+    }
+}
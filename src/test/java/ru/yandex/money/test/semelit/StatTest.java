@@ -1,14 +1,12 @@
 package ru.yandex.money.test.semelit;
 
-import org.junit.BeforeClass;
 import org.junit.Test;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.RecursiveAction;
@@ -17,67 +15,46 @@ import static org.junit.Assert.*;
 
 public class StatTest {
 
-    static Method insertAtMethod;
-    static Method countInDurationMethod;
-    static Field offsetStampField;
-
-    @BeforeClass
-    public static void init() throws NoSuchFieldException {
-        insertAtMethod = Arrays.stream(EventStat.class.getDeclaredMethods())
-                .filter(method -> method.getName().equals("insertAt"))
-                .findFirst()
-                .orElseThrow(() -> new RuntimeException("Not found EventStat.insertAt"));
-        insertAtMethod.setAccessible(true);
-
-        countInDurationMethod = Arrays.stream(EventStat.class.getDeclaredMethods())
-                .filter(method -> method.getName().equals("countInDuration"))
-                .findFirst()
-                .orElseThrow(() ->  new RuntimeException("Not found EventStat.countInDuration"));
-        countInDurationMethod.setAccessible(true);
-
-        offsetStampField = EventStat.class.getDeclaredField("offsetStamp");
-        offsetStampField.setAccessible(true);
-    }
-
     private static void assertNInLastMinute(int n, EventStat<?> es) {
-        int countInLastMinute = es.countInLastMinute();
+        long countInLastMinute = es.countInLastMinute();
         assertTrue("Ожидаем " + n + " за последнюю минуту, но " + countInLastMinute, countInLastMinute == n);
     }
 
-    private static void assertNInLastMinuteAtTimestamp(int n, EventStat<?> es, long timestamp) throws InvocationTargetException, IllegalAccessException {
-        int countInLastMinute = (Integer) countInDurationMethod.invoke(es, EventStat.SECONDS_IN_MINUTE, timestamp);
+    private static void assertNInLastMinuteAtTimestamp(int n, EventStat<?> es, long timestamp) {
+        long countInLastMinute = es.countAt(EventStat.SECONDS_IN_MINUTE, timestamp);
         assertTrue("Ожидаем " + n + " за последнюю минуту, но " + countInLastMinute, countInLastMinute == n);
     }
 
 
     private static void assertNInLastHour(int n, EventStat<?> es) {
-        int countInLastHour = es.countInLastHour();
+        long countInLastHour = es.countInLastHour();
         assertTrue("Ожидаем " + n + " за последний час, но " + countInLastHour, countInLastHour == n);
     }
 
-    private static void assertNInLastHourAtTimestamp(int n, EventStat<?> es, long timestamp) throws InvocationTargetException, IllegalAccessException {
-        int countInLastHour = (Integer) countInDurationMethod.invoke(es, EventStat.SECONDS_IN_HOUR, timestamp);
+    private static void assertNInLastHourAtTimestamp(int n, EventStat<?> es, long timestamp) {
+        long countInLastHour = es.countAt(EventStat.SECONDS_IN_HOUR, timestamp);
         assertTrue("Ожидаем " + n + " за последний час, но " + countInLastHour, countInLastHour == n);
     }
 
 
     private static void assertNInLastDay(int n, EventStat<?> es) {
-        int countInLastDay = es.countInLastDay();
+        long countInLastDay = es.countInLastDay();
         assertTrue("Ожидаем " + n + " за последний день, но " + countInLastDay, countInLastDay == n);
     }
 
-    private static void assertNInLastDayAtTimestamp(int n, EventStat<?> es, long timestamp) throws InvocationTargetException, IllegalAccessException {
-        int countInLastDay = (Integer) countInDurationMethod.invoke(es, EventStat.SECONDS_IN_24_HOURS, timestamp);
+    private static void assertNInLastDayAtTimestamp(int n, EventStat<?> es, long timestamp) {
+        long countInLastDay = es.countAt(EventStat.SECONDS_IN_24_HOURS, timestamp);
         assertTrue("Ожидаем " + n + " за последний день, но " + countInLastDay, countInLastDay == n);
     }
 
-    private static <T> boolean insertAtStamp(T event, EventStat<T> es, long timestamp) throws InvocationTargetException, IllegalAccessException {
-        return (Boolean) insertAtMethod.invoke(es, event, timestamp);
+    private static void assertSameAsScanAtTimestamp(EventStat<?> es, long timestamp) {
+        for (int duration : new int[] {EventStat.SECONDS_IN_MINUTE, EventStat.SECONDS_IN_HOUR, EventStat.SECONDS_IN_24_HOURS}) {
+            long byScan = es.countInDurationByScan(duration, timestamp);
+            long count = es.countAt(duration, timestamp);
+            assertEquals("Расхождение с полным проходом для окна " + duration + "с на " + timestamp, byScan, count);
+        }
     }
 
-    private static long getOffsetStamp(EventStat<?> es) throws IllegalAccessException {
-        return (Long) offsetStampField.get(es);
-    }
 
     @Test
     public void testTrivialInsert() {
@@ -87,9 +64,9 @@ public class StatTest {
     }
 
     @Test
-    public void testInsertInThePast() throws InvocationTargetException, IllegalAccessException {
+    public void testInsertInThePast() {
         EventStat<Object> es = new EventStat<>();
-        assertFalse("Ожидаем false при попытке вставить событие в прошлом", insertAtStamp(new Object(), es, System.currentTimeMillis() - EventStat.MILLIS_IN_24_HOURS - 60*1000));
+        assertFalse("Ожидаем false при попытке вставить событие в прошлом", es.insertAt(new Object(), System.currentTimeMillis() - EventStat.MILLIS_IN_24_HOURS - 60*1000));
     }
 
 
@@ -101,10 +78,10 @@ public class StatTest {
     }
 
     @Test
-    public void testCountInThePast() throws InvocationTargetException, IllegalAccessException {
+    public void testCountInThePast() {
         EventStat<Object> es = new EventStat<>();
         es.insert(new Object());
-        assertNInLastMinuteAtTimestamp(-1, es, System.currentTimeMillis() - 60*1000);
+        assertNInLastMinuteAtTimestamp(0, es, System.currentTimeMillis() - 60*1000);
     }
 
 
@@ -136,7 +113,7 @@ public class StatTest {
 
 
     @Test
-    public void testTrivialInLastHourNotInLastMinute() throws InvocationTargetException, IllegalAccessException {
+    public void testTrivialInLastHourNotInLastMinute() {
         EventStat<Object> es = new EventStat<>();
         es.insert(new Object());
         assertNInLastMinute(1, es);
@@ -147,7 +124,7 @@ public class StatTest {
     }
 
     @Test
-    public void testTrivialInLastDayNotInLastHour() throws InvocationTargetException, IllegalAccessException {
+    public void testTrivialInLastDayNotInLastHour() {
         EventStat<Object> es = new EventStat<>();
         es.insert(new Object());
         assertNInLastMinute(1, es);
@@ -160,7 +137,7 @@ public class StatTest {
     }
 
     @Test
-    public void testTrivialNotInLastDay() throws InvocationTargetException, IllegalAccessException {
+    public void testTrivialNotInLastDay() {
         EventStat<Object> es = new EventStat<>();
         es.insert(new Object());
         assertNInLastMinute(1, es);
@@ -173,7 +150,7 @@ public class StatTest {
     }
 
     @Test
-    public void testInsertAfterOverflow() throws InvocationTargetException, IllegalAccessException {
+    public void testInsertAfterOverflow() {
         EventStat<Object> es = new EventStat<>();
         es.insert(new Object());
         assertNInLastMinute(1, es);
@@ -183,7 +160,7 @@ public class StatTest {
         assertNInLastMinuteAtTimestamp(0, es, nextHourStamp);
         assertNInLastHourAtTimestamp(0, es, nextHourStamp);
         assertNInLastDayAtTimestamp(0, es, nextHourStamp);
-        insertAtStamp(new Object(), es, nextHourStamp);
+        es.insertAt(new Object(), nextHourStamp);
         assertNInLastMinuteAtTimestamp(1, es, nextHourStamp);
         assertNInLastHourAtTimestamp(1, es, nextHourStamp);
         assertNInLastDayAtTimestamp(1, es, nextHourStamp);
@@ -215,7 +192,8 @@ public class StatTest {
 
     @Test
     public void test10KConcurrentInsertWithLag() throws ExecutionException, InterruptedException {
-        final EventStat<Object> es = new EventStat<>();
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> es = new EventStat<>(clock);
 
         int n = 10_000;
         List<ForkJoinTask<Void>> taskList = new ArrayList<>();
@@ -230,7 +208,7 @@ public class StatTest {
                 while (!taskList.isEmpty()) {
                     taskList.remove(0).get();
                 }
-                Thread.sleep(1990); //эмулируем лаг на точке пересечения секунд
+                clock.advance(1990); //эмулируем лаг на точке пересечения секунд
             }
 
         }
@@ -247,9 +225,9 @@ public class StatTest {
 
 
     @Test
-    public void testConcurrentAtOverflow() throws ExecutionException, InterruptedException, IllegalAccessException, InvocationTargetException {
-        final EventStat<Object> es = new EventStat<>();
-        final long offsetStamp = getOffsetStamp(es);
+    public void testConcurrentAtOverflow() throws ExecutionException, InterruptedException {
+        final long offsetStamp = System.currentTimeMillis();
+        final EventStat<Object> es = new EventStat<>(new ManualTimeSource(offsetStamp));
         int n = 5_000;
         long finalStamp = offsetStamp + EventStat.MILLIS_IN_24_HOURS;
         List<ForkJoinTask<Void>> taskList = new ArrayList<>();
@@ -258,11 +236,7 @@ public class StatTest {
             taskList.add(new RecursiveAction() {
                 @Override
                 protected void compute() {
-                    try {
-                        insertAtStamp(new Object(), es, nextStamp);
-                    } catch (InvocationTargetException | IllegalAccessException e) {
-                        throw new RuntimeException(e);
-                    }
+                    es.insertAt(new Object(), nextStamp);
                 }
             }.fork());
             if (i % 500 == 0) { //таким образом ограничеваем поступление событий в "будущем" до 500мс
@@ -289,9 +263,9 @@ public class StatTest {
 
 
     @Test
-    public void testConcurrentOverflow() throws ExecutionException, InterruptedException, IllegalAccessException, InvocationTargetException {
-        final EventStat<Object> es = new EventStat<>();
-        final long offsetStamp = getOffsetStamp(es);
+    public void testConcurrentOverflow() throws ExecutionException, InterruptedException {
+        final long offsetStamp = System.currentTimeMillis();
+        final EventStat<Object> es = new EventStat<>(new ManualTimeSource(offsetStamp));
         int n = 10_000;
         long finalStamp = offsetStamp + EventStat.MILLIS_IN_24_HOURS + n/2;
         List<ForkJoinTask<Void>> taskList = new ArrayList<>();
@@ -300,11 +274,7 @@ public class StatTest {
             taskList.add(new RecursiveAction() {
                 @Override
                 protected void compute() {
-                    try {
-                        insertAtStamp(new Object(), es, nextStamp);
-                    } catch (InvocationTargetException | IllegalAccessException e) {
-                        throw new RuntimeException(e);
-                    }
+                    es.insertAt(new Object(), nextStamp);
                 }
             }.fork());
             if (i % 500 == 0) { //таким образом ограничеваем поступление событий в "будущем" до 500мс
@@ -321,26 +291,26 @@ public class StatTest {
     }
 
     @Test
-    public void test48hr1TPS() throws IllegalAccessException, InvocationTargetException {
-        final EventStat<Object> es = new EventStat<>();
-        final long offsetStamp = getOffsetStamp(es);
+    public void test48hr1TPS() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = new EventStat<>(clock);
         int n = EventStat.SECONDS_IN_24_HOURS * 2;
-        long finalStamp = offsetStamp + EventStat.MILLIS_IN_24_HOURS * 2;
 
         for (int i = 1; i <= n; i++) {
-            final long nextStamp = offsetStamp + i*1000;
-            assertNotNull(insertAtStamp(new Object(), es, nextStamp > finalStamp ? finalStamp : nextStamp));
+            clock.advance(1000);
+            assertTrue(es.insert(new Object()));
         }
 
-        assertNInLastMinuteAtTimestamp(EventStat.SECONDS_IN_MINUTE, es, finalStamp);
-        assertNInLastHourAtTimestamp(EventStat.SECONDS_IN_HOUR, es, finalStamp);
-        assertNInLastDayAtTimestamp(EventStat.SECONDS_IN_24_HOURS, es, finalStamp);
+        assertNInLastMinute(EventStat.SECONDS_IN_MINUTE, es);
+        assertNInLastHour(EventStat.SECONDS_IN_HOUR, es);
+        assertNInLastDay(EventStat.SECONDS_IN_24_HOURS, es);
     }
 
     @Test
-    public void test48hr2TPS() throws IllegalAccessException, InvocationTargetException, ExecutionException, InterruptedException {
-        final EventStat<Object> es = new EventStat<>();
-        final long offsetStamp = getOffsetStamp(es);
+    public void test48hr2TPS() throws ExecutionException, InterruptedException {
+        final long offsetStamp = System.currentTimeMillis();
+        final EventStat<Object> es = new EventStat<>(new ManualTimeSource(offsetStamp));
         int n = EventStat.SECONDS_IN_24_HOURS * 2;
         long finalStamp = offsetStamp + EventStat.MILLIS_IN_24_HOURS * 2;
         List<ForkJoinTask<Void>> taskList = new ArrayList<>();
@@ -349,21 +319,13 @@ public class StatTest {
             taskList.add(new RecursiveAction() {
                 @Override
                 protected void compute() {
-                    try {
-                        insertAtStamp(new Object(), es, nextStamp > finalStamp ? finalStamp : nextStamp);
-                    } catch (InvocationTargetException | IllegalAccessException e) {
-                        throw new RuntimeException(e);
-                    }
+                    es.insertAt(new Object(), nextStamp > finalStamp ? finalStamp : nextStamp);
                 }
             }.fork());
             taskList.add(new RecursiveAction() {
                 @Override
                 protected void compute() {
-                    try {
-                        insertAtStamp(new Object(), es, nextStamp > finalStamp ? finalStamp : nextStamp);
-                    } catch (InvocationTargetException | IllegalAccessException e) {
-                        throw new RuntimeException(e);
-                    }
+                    es.insertAt(new Object(), nextStamp > finalStamp ? finalStamp : nextStamp);
                 }
             }.fork());
 
@@ -380,24 +342,24 @@ public class StatTest {
 
 
     @Test
-    public void test48hr1TPH() throws IllegalAccessException, InvocationTargetException {
-        final EventStat<Object> es = new EventStat<>();
-        final long offsetStamp = getOffsetStamp(es);
+    public void test48hr1TPH() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = new EventStat<>(clock);
         int n = 48;
-        long finalStamp = offsetStamp + EventStat.MILLIS_IN_24_HOURS * 2;
 
         for (int i = 0; i <= n; i++) {
-            long nextStamp = offsetStamp + i*EventStat.MILLIS_IN_HOUR;
-            assertNotNull(insertAtStamp(new Object(), es, nextStamp > finalStamp ? finalStamp : nextStamp));
+            clock.set(offsetStamp + i*EventStat.MILLIS_IN_HOUR);
+            assertTrue(es.insert(new Object()));
         }
 
-        assertNInLastDayAtTimestamp(n/2, es, finalStamp);
+        assertNInLastDay(n/2, es);
     }
 
     @Test
-    public void test48hr2TPH() throws IllegalAccessException, InvocationTargetException, ExecutionException, InterruptedException {
-        final EventStat<Object> es = new EventStat<>();
-        final long offsetStamp = getOffsetStamp(es);
+    public void test48hr2TPH() throws ExecutionException, InterruptedException {
+        final long offsetStamp = System.currentTimeMillis();
+        final EventStat<Object> es = new EventStat<>(new ManualTimeSource(offsetStamp));
         int n = 48*2;
         long finalStamp = offsetStamp + EventStat.MILLIS_IN_24_HOURS * 2;
         List<ForkJoinTask<Void>> taskList = new ArrayList<>();
@@ -407,21 +369,13 @@ public class StatTest {
             taskList.add(new RecursiveAction() {
                 @Override
                 protected void compute() {
-                    try {
-                        insertAtStamp(new Object(), es, nextStamp > finalStamp ? finalStamp : nextStamp);
-                    } catch (InvocationTargetException | IllegalAccessException e) {
-                        throw new RuntimeException(e);
-                    }
+                    es.insertAt(new Object(), nextStamp > finalStamp ? finalStamp : nextStamp);
                 }
             }.fork());
             taskList.add(new RecursiveAction() {
                 @Override
                 protected void compute() {
-                    try {
-                        insertAtStamp(new Object(), es, nextStamp > finalStamp ? finalStamp : nextStamp);
-                    } catch (InvocationTargetException | IllegalAccessException e) {
-                        throw new RuntimeException(e);
-                    }
+                    es.insertAt(new Object(), nextStamp > finalStamp ? finalStamp : nextStamp);
                 }
             }.fork());
 
@@ -434,9 +388,9 @@ public class StatTest {
     }
 
     @Test
-    public void test48hr2TPD() throws IllegalAccessException, InvocationTargetException, ExecutionException, InterruptedException {
-        final EventStat<Object> es = new EventStat<>();
-        final long offsetStamp = getOffsetStamp(es);
+    public void test48hr2TPD() throws ExecutionException, InterruptedException {
+        final long offsetStamp = System.currentTimeMillis();
+        final EventStat<Object> es = new EventStat<>(new ManualTimeSource(offsetStamp));
         int n = 2;
         long finalStamp = offsetStamp + EventStat.MILLIS_IN_24_HOURS * 2;
         List<ForkJoinTask<Void>> taskList = new ArrayList<>();
@@ -446,21 +400,13 @@ public class StatTest {
             taskList.add(new RecursiveAction() {
                 @Override
                 protected void compute() {
-                    try {
-                        insertAtStamp(new Object(), es, nextStamp > finalStamp ? finalStamp : nextStamp);
-                    } catch (InvocationTargetException | IllegalAccessException e) {
-                        throw new RuntimeException(e);
-                    }
+                    es.insertAt(new Object(), nextStamp > finalStamp ? finalStamp : nextStamp);
                 }
             }.fork());
             taskList.add(new RecursiveAction() {
                 @Override
                 protected void compute() {
-                    try {
-                        insertAtStamp(new Object(), es, nextStamp > finalStamp ? finalStamp : nextStamp);
-                    } catch (InvocationTargetException | IllegalAccessException e) {
-                        throw new RuntimeException(e);
-                    }
+                    es.insertAt(new Object(), nextStamp > finalStamp ? finalStamp : nextStamp);
                 }
             }.fork());
 
@@ -472,4 +418,504 @@ public class StatTest {
         assertNInLastDayAtTimestamp(n, es, finalStamp);
     }
 
+    @Test
+    public void testAggregatesSameAsScanAtBoundaries() {
+        final long offsetStamp = System.currentTimeMillis();
+        EventStat<Object> es = new EventStat<>(new ManualTimeSource(offsetStamp));
+        es.insertAt(new Object(), offsetStamp);
+        assertSameAsScanAtTimestamp(es, offsetStamp);
+        assertSameAsScanAtTimestamp(es, offsetStamp + 1000 * 62);
+        assertSameAsScanAtTimestamp(es, offsetStamp + 1000 * 36600);
+        assertSameAsScanAtTimestamp(es, offsetStamp + EventStat.MILLIS_IN_24_HOURS);
+
+        long overflowStamp = offsetStamp + EventStat.MILLIS_IN_24_HOURS + 1000;
+        assertSameAsScanAtTimestamp(es, overflowStamp);
+        es.insertAt(new Object(), overflowStamp);
+        assertSameAsScanAtTimestamp(es, overflowStamp);
+        assertNInLastDayAtTimestamp(1, es, overflowStamp);
+    }
+
+    @Test
+    public void testAggregatesSameAsScan26hr() {
+        final long offsetStamp = System.currentTimeMillis();
+        final EventStat<Object> es = new EventStat<>(new ManualTimeSource(offsetStamp));
+        final long step = 7_000; //не кратно ни минуте, ни часу
+        final long[] lateOffsets = {0, 999, 1000, 59_000, 60_000, 61_000, EventStat.MILLIS_IN_HOUR - 1000, EventStat.MILLIS_IN_HOUR, EventStat.MILLIS_IN_HOUR + 1000};
+        long nextCheck = offsetStamp;
+        int n = 0;
+
+        for (long stamp = offsetStamp; stamp <= offsetStamp + EventStat.MILLIS_IN_HOUR * 26; stamp += step) {
+            assertTrue(es.insertAt(new Object(), stamp));
+            n++;
+            if (stamp >= nextCheck) {
+                for (long lateOffset : lateOffsets) {
+                    assertSameAsScanAtTimestamp(es, stamp + lateOffset);
+                }
+                nextCheck += EventStat.MILLIS_IN_HOUR / 3 + 1000;
+            }
+        }
+
+        assertTrue(n > EventStat.SECONDS_IN_24_HOURS / 7);
+    }
+
+    @Test
+    public void testStriped10KConcurrentInsert() throws ExecutionException, InterruptedException {
+        final EventStat<Object> es = new EventStat<>(true);
+
+        int n = 10_000;
+        List<ForkJoinTask<Void>> taskList = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            taskList.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    es.insert(new Object());
+                }
+            }.fork());
+        }
+
+        while (!taskList.isEmpty()) {
+            taskList.remove(0).get();
+        }
+
+        assertNInLastMinute(n, es);
+        assertNInLastHour(n, es);
+        assertNInLastDay(n, es);
+    }
+
+    @Test
+    public void testStripedConcurrentOverflow() throws ExecutionException, InterruptedException {
+        final long offsetStamp = System.currentTimeMillis();
+        final EventStat<Object> es = new EventStat<>(new ManualTimeSource(offsetStamp), true);
+        int n = 10_000;
+        long finalStamp = offsetStamp + EventStat.MILLIS_IN_24_HOURS + n/2;
+        List<ForkJoinTask<Void>> taskList = new ArrayList<>();
+        for (int i = 1; i <= n; i++) {
+            final long nextStamp = offsetStamp + EventStat.MILLIS_IN_24_HOURS - n/2 + i;
+            taskList.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    es.insertAt(new Object(), nextStamp);
+                }
+            }.fork());
+            if (i % 500 == 0) { //таким образом ограничеваем поступление событий в "будущем" до 500мс
+                while (!taskList.isEmpty()) {
+                    taskList.remove(0).get();
+                }
+            }
+        }
+
+        assertNInLastMinuteAtTimestamp(n, es, finalStamp);
+        assertNInLastHourAtTimestamp(n, es, finalStamp);
+        assertNInLastDayAtTimestamp(n, es, finalStamp);
+        assertSameAsScanAtTimestamp(es, finalStamp);
+    }
+
+    @Test
+    public void testStriped48hr2TPS() throws ExecutionException, InterruptedException {
+        final long offsetStamp = System.currentTimeMillis();
+        final EventStat<Object> es = new EventStat<>(new ManualTimeSource(offsetStamp), true);
+        int n = EventStat.SECONDS_IN_24_HOURS * 2;
+        long finalStamp = offsetStamp + EventStat.MILLIS_IN_24_HOURS * 2;
+        List<ForkJoinTask<Void>> taskList = new ArrayList<>();
+        for (int i = 0; i <= n; i++) {
+            final long nextStamp = offsetStamp + i*1000;
+            for (int j = 0; j < 2; j++) {
+                taskList.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        es.insertAt(new Object(), nextStamp > finalStamp ? finalStamp : nextStamp);
+                    }
+                }.fork());
+            }
+
+            while (!taskList.isEmpty()) {
+                taskList.remove(0).get();
+            }
+        }
+
+        assertNInLastMinuteAtTimestamp(EventStat.SECONDS_IN_MINUTE*2, es, finalStamp);
+        assertNInLastHourAtTimestamp(EventStat.SECONDS_IN_HOUR*2, es, finalStamp);
+        assertNInLastDayAtTimestamp(n, es, finalStamp);
+    }
+
+    @Test
+    public void testStaleSlotsIgnoredAfterIdle() {
+        final long offsetStamp = System.currentTimeMillis();
+        final EventStat<Object> es = new EventStat<>(new ManualTimeSource(offsetStamp));
+        for (int i = 0; i < EventStat.SECONDS_IN_HOUR; i++) {
+            assertTrue(es.insertAt(new Object(), offsetStamp + i * 1000));
+        }
+
+        //простой почти на сутки, слоты первого часа частично выходят за окно
+        long wakeUpStamp = offsetStamp + EventStat.MILLIS_IN_24_HOURS + EventStat.MILLIS_IN_HOUR / 2;
+        assertNInLastDayAtTimestamp(EventStat.SECONDS_IN_HOUR / 2 - 1, es, wakeUpStamp);
+        assertTrue(es.insertAt(new Object(), wakeUpStamp));
+        assertNInLastMinuteAtTimestamp(1, es, wakeUpStamp);
+        assertNInLastHourAtTimestamp(1, es, wakeUpStamp);
+        assertNInLastDayAtTimestamp(EventStat.SECONDS_IN_HOUR / 2, es, wakeUpStamp);
+        assertSameAsScanAtTimestamp(es, wakeUpStamp);
+
+        //спустя ещё сутки простоя в окне только последнее событие
+        long nextDayStamp = wakeUpStamp + EventStat.MILLIS_IN_24_HOURS - 1000;
+        assertNInLastHourAtTimestamp(0, es, nextDayStamp);
+        assertNInLastDayAtTimestamp(1, es, nextDayStamp);
+        assertSameAsScanAtTimestamp(es, nextDayStamp);
+    }
+
+    @Test
+    public void testBatchInsert() {
+        EventStat<Object> es = new EventStat<>();
+        assertTrue(es.insert(5_000));
+        assertTrue(es.insertAll(Arrays.asList(new Object(), new Object(), new Object())));
+        assertTrue(es.insert(0));
+        assertNInLastMinute(5_003, es);
+        assertNInLastHour(5_003, es);
+        assertNInLastDay(5_003, es);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBatchInsertNegative() {
+        new EventStat<>().insert(-1);
+    }
+
+    @Test
+    public void testBatchInsertInThePast() {
+        EventStat<Object> es = new EventStat<>();
+        assertFalse("Ожидаем false при попытке вставить пакет в прошлом",
+                es.insertCountAt(100, System.currentTimeMillis() - EventStat.MILLIS_IN_24_HOURS - 60*1000));
+    }
+
+    @Test
+    public void testBatch48hr() {
+        for (boolean striped : new boolean[] {false, true}) {
+            final long offsetStamp = System.currentTimeMillis();
+            final EventStat<Object> es = new EventStat<>(new ManualTimeSource(offsetStamp), striped);
+            final List<Object> batch = Arrays.asList(new Object(), new Object());
+            long finalStamp = offsetStamp + EventStat.MILLIS_IN_24_HOURS * 2;
+
+            for (long stamp = offsetStamp; stamp <= finalStamp; stamp += 30_000) {
+                assertTrue(es.insertAllAt(batch, stamp));
+                assertTrue(es.insertCountAt(1_000, stamp));
+            }
+
+            assertNInLastMinuteAtTimestamp(2 * 1_002, es, finalStamp);
+            assertNInLastHourAtTimestamp(120 * 1_002, es, finalStamp);
+            assertNInLastDayAtTimestamp(2880 * 1_002, es, finalStamp);
+            assertSameAsScanAtTimestamp(es, finalStamp);
+        }
+    }
+
+    @Test
+    public void testCachedTimeSource() throws InterruptedException {
+        try (CachedTimeSource clock = new CachedTimeSource()) {
+            long before = clock.currentTimeMillis();
+            assertTrue(Math.abs(System.currentTimeMillis() - before) < 1000);
+            Thread.sleep(50);
+            assertTrue("Ожидаем, что кешированное время идёт", clock.currentTimeMillis() > before);
+
+            EventStat<Object> es = new EventStat<>(clock);
+            assertTrue(es.insert(new Object()));
+            assertNInLastMinute(1, es);
+        }
+    }
+
+    @Test
+    public void testManualTimeSource() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = new EventStat<>(clock);
+        es.insert(new Object());
+        assertEquals(offsetStamp + 61_000, clock.advance(61_000));
+        es.insert(new Object());
+        assertNInLastMinute(1, es);
+        assertNInLastHour(2, es);
+        assertEquals(2, es.countAt(EventStat.SECONDS_IN_HOUR, clock.currentTimeMillis()));
+    }
+
+    @Test
+    public void testCountInLastArbitraryWindow() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = new EventStat<>(clock);
+        for (int i = 0; i < 2 * EventStat.SECONDS_IN_HOUR; i++) {
+            clock.set(offsetStamp + i * 1000);
+            es.insert(2);
+        }
+
+        assertEquals(2 * 5 * 60, es.countInLast(Duration.ofMinutes(5)));
+        assertEquals(2 * 15 * 60, es.countInLast(Duration.ofMinutes(15)));
+        assertEquals(2 * 2, es.countInLast(Duration.ofMillis(1500))); //округляется до 2 секунд
+        assertEquals(2 * 2 * EventStat.SECONDS_IN_HOUR, es.countInLast(Duration.ofHours(24)));
+        assertEquals(es.countInLastHour(), es.countInLast(Duration.ofHours(1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCountInLastTooLongWindow() {
+        new EventStat<>().countInLast(Duration.ofHours(24).plusSeconds(1));
+    }
+
+    @Test
+    public void testCountBetween() {
+        final long offsetStamp = System.currentTimeMillis();
+        final EventStat<Object> es = new EventStat<>(new ManualTimeSource(offsetStamp));
+        final long step = 7_000;
+        final long finalStamp = offsetStamp + EventStat.MILLIS_IN_HOUR * 26;
+        for (long stamp = offsetStamp; stamp <= finalStamp; stamp += step) {
+            es.insertAt(new Object(), stamp);
+        }
+
+        //эталон: события через каждые 7 секунд, считаем их в целых секундах отрезка
+        final long[][] ranges = {
+                {finalStamp - 5 * EventStat.MILLIS_IN_MINUTE, finalStamp},
+                {finalStamp - EventStat.MILLIS_IN_24_HOURS + 1000, finalStamp},
+                {offsetStamp + 3 * EventStat.MILLIS_IN_HOUR + 123, offsetStamp + 7 * EventStat.MILLIS_IN_HOUR - 4_567},
+                {offsetStamp + 20 * EventStat.MILLIS_IN_HOUR, offsetStamp + 20 * EventStat.MILLIS_IN_HOUR},
+                {offsetStamp + 20 * EventStat.MILLIS_IN_HOUR + 1000, offsetStamp + 20 * EventStat.MILLIS_IN_HOUR + 6999},
+        };
+        for (long[] range : ranges) {
+            long fromSecond = Math.floorDiv(range[0] - offsetStamp, 1000);
+            long toSecond = Math.floorDiv(range[1] - offsetStamp, 1000);
+            int expected = 0;
+            for (long stamp = offsetStamp; stamp <= finalStamp; stamp += step) {
+                long second = (stamp - offsetStamp) / 1000;
+                if (second >= fromSecond && second <= toSecond) expected++;
+            }
+            assertEquals("Отрезок " + Arrays.toString(range), expected, es.countBetween(range[0], range[1]));
+        }
+
+        //первые два часа уже вытеснены из кольца
+        assertEquals(0, es.countBetween(offsetStamp, offsetStamp + EventStat.MILLIS_IN_HOUR));
+    }
+
+
+    @Test
+    public void testSubSecondSlots() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = EventStat.builder()
+                .timeSource(clock)
+                .slotWidth(Duration.ofMillis(100))
+                .retention(Duration.ofSeconds(60))
+                .build();
+        assertEquals(Duration.ofSeconds(60), es.getRetention());
+        for (int i = 0; i < 1200; i++) { //два минутных оборота по событию каждые 100мс
+            clock.set(offsetStamp + i * 100);
+            assertTrue(es.insert(new Object()));
+        }
+        assertEquals(3, es.countInLast(Duration.ofMillis(300)));
+        assertEquals(5, es.countInLast(Duration.ofMillis(450))); //округляется до 5 слотов
+        assertEquals(600, es.countInLastMinute());
+        assertEquals(601, es.countInLastHour()); //окно ограничено глубиной хранения плюс текущий слот
+        assertSameAsScanAtTimestamp(es, clock.currentTimeMillis());
+        assertFalse(es.insertAt(new Object(), clock.currentTimeMillis() - 61_000));
+    }
+
+    @Test
+    public void testMillisecondSlotsBeyondIntSlotNumbers() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        for (boolean striped : new boolean[] {false, true}) {
+            clock.set(offsetStamp);
+            final EventStat<Object> es = EventStat.builder()
+                    .timeSource(clock)
+                    .striped(striped)
+                    .slotWidth(Duration.ofMillis(1))
+                    .retention(Duration.ofMinutes(1))
+                    .build();
+            assertTrue(es.insert(new Object()));
+            assertEquals(1, es.countInLastMinute());
+
+            //номер миллисекундного слота уходит за int примерно через 25 суток
+            clock.advance(1L << 31);
+            assertEquals(0, es.countInLastMinute());
+            for (int i = 0; i < 1000; i++) {
+                clock.advance(30);
+                assertTrue(es.insert(new Object()));
+            }
+            assertTrue(es.insertAt(new Object(), clock.currentTimeMillis() - 10_000));
+            assertEquals(1001, es.countInLastMinute());
+            assertEquals(es.countInLast(Duration.ofSeconds(15)), es.countBetween(clock.currentTimeMillis() - 14_999, clock.currentTimeMillis()));
+            assertSameAsScanAtTimestamp(es, clock.currentTimeMillis());
+            assertEquals(1001, es.snapshot(60).countInLastMinute());
+        }
+    }
+
+    @Test
+    public void testWeekOfMinuteSlots() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = EventStat.builder()
+                .timeSource(clock)
+                .slotWidth(Duration.ofMinutes(1))
+                .retention(Duration.ofDays(7))
+                .build();
+        for (int i = 0; i < 8 * 24 * 60; i++) { //восемь суток по событию в минуту
+            clock.set(offsetStamp + i * EventStat.MILLIS_IN_MINUTE);
+            assertTrue(es.insert(new Object()));
+        }
+        assertEquals(1, es.countInLastMinute());
+        assertEquals(60, es.countInLastHour());
+        assertEquals(24 * 60, es.countInLastDay());
+        assertEquals(7 * 24 * 60, es.countInLast(Duration.ofDays(7)));
+        assertEquals(3 * 24 * 60, es.countBetween(clock.currentTimeMillis() - 3 * EventStat.MILLIS_IN_24_HOURS + EventStat.MILLIS_IN_MINUTE, clock.currentTimeMillis()));
+    }
+
+    @Test
+    public void testCountsBeyondIntRange() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = new EventStat<>(clock);
+        for (int i = 0; i < 4; i++) { //счётчик базового слота заполнен целиком, агрегаты уходят за 31 бит
+            clock.set(offsetStamp + i * 1000L);
+            assertTrue(es.insertCountAt(Integer.MAX_VALUE, clock.currentTimeMillis()));
+        }
+        final long total = 4L * Integer.MAX_VALUE;
+        assertEquals(total, es.countInLastMinute());
+        assertEquals(total, es.countInLastDay());
+
+        clock.advance(10 * EventStat.MILLIS_IN_MINUTE);
+        assertEquals(0, es.countInLastMinute());
+        assertEquals(total, es.countInLastHour());
+        assertEquals(total, es.countInLast(Duration.ofHours(2)));
+        assertEquals(total, es.countBetween(offsetStamp, clock.currentTimeMillis()));
+        assertFalse(es.tryAcquire(total, Duration.ofHours(1)));
+        assertTrue(es.tryAcquire(total + 1, Duration.ofHours(1)));
+    }
+
+    @Test
+    public void testBaseSlotOverflowIsRejected() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final List<EventStat<Object>> stats = Arrays.asList(
+                new EventStat<>(clock),
+                EventStat.<Object>builder().timeSource(clock).compact(true).build());
+        for (EventStat<Object> es : stats) {
+            final long stamp = clock.currentTimeMillis();
+            assertTrue(es.insertCountAt(Integer.MAX_VALUE - 5, stamp));
+            for (int i = 0; i < 5; i++) {
+                assertTrue(es.insertAt(new Object(), stamp));
+            }
+            //следующие события слота переполнили бы счётчик и ушли бы в печать и номер периода
+            for (int i = 0; i < 10; i++) {
+                assertFalse(es.insertAt(new Object(), stamp));
+            }
+            assertFalse(es.insertCountAt(Integer.MAX_VALUE, stamp));
+            assertEquals(11, es.getRejectedCount());
+            assertEquals(Integer.MAX_VALUE, es.countInLastMinute());
+            assertEquals(Integer.MAX_VALUE, es.countInLastDay());
+
+            clock.advance(EventStat.MILLIS_IN_HOUR); //следующий слот считается с нуля
+            assertTrue(es.insertCountAt(Integer.MAX_VALUE, clock.currentTimeMillis()));
+            clock.advance(EventStat.MILLIS_IN_HOUR);
+            assertTrue(es.insert(new Object()));
+            assertEquals(2L * Integer.MAX_VALUE + 1, es.countInLastDay());
+            assertEquals(11, es.getRejectedCount());
+        }
+    }
+
+    @Test
+    public void testCoarseSlotsGetWiderCounters() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final List<EventStat<Object>> stats = Arrays.asList(
+                EventStat.<Object>builder().timeSource(clock).slotWidth(Duration.ofHours(1)).retention(Duration.ofDays(7)).build(),
+                EventStat.<Object>builder().timeSource(clock).slotWidth(Duration.ofHours(1)).retention(Duration.ofDays(7)).compact(true).build());
+        for (EventStat<Object> es : stats) {
+            //номеру часового слота на сто лет хватает 20 бит, счётчику остаётся 43 бита
+            final long stamp = clock.currentTimeMillis();
+            for (int i = 0; i < 1 << 12; i++) {
+                assertTrue(es.insertCountAt(Integer.MAX_VALUE, stamp));
+            }
+            assertTrue(es.insertCountAt((1 << 12) - 1, stamp));
+            final long max = (1L << 43) - 1;
+            assertEquals(max, es.countInLastHour());
+            assertFalse(es.insertAt(new Object(), stamp));
+            assertEquals(1, es.getRejectedCount());
+            assertEquals(max, es.countInLastDay());
+
+            clock.advance(EventStat.MILLIS_IN_HOUR);
+            assertTrue(es.insertCountAt(Integer.MAX_VALUE, clock.currentTimeMillis()));
+            assertEquals(max + Integer.MAX_VALUE, es.countInLastDay());
+
+            //номер слота за сроком службы не поместился бы в свои биты
+            assertFalse(es.insertAt(new Object(), stamp + 2 * EventStat.LIFETIME_MILLIS));
+            assertEquals(2, es.getRejectedCount());
+            assertEquals(max + Integer.MAX_VALUE, es.countInLastDay());
+        }
+    }
+
+    @Test
+    public void testStripedFoldSpillsIntoSlot() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final EventStat<Object> es = new EventStat<>(clock, true);
+        //первый пакет ложится в ячейку полосы, второй её переполнил бы и уходит сразу в кольцо
+        assertTrue(es.insertCountAt(Integer.MAX_VALUE, clock.currentTimeMillis()));
+        assertTrue(es.insertCountAt(Integer.MAX_VALUE - 100, clock.currentTimeMillis()));
+        assertEquals(2L * Integer.MAX_VALUE - 100, es.countInLastMinute());
+        assertEquals(0, es.getRejectedCount());
+
+        //слот кольца вмещает ещё 100 событий ячейки, остальные теряются и учитываются поштучно
+        clock.advance(1000);
+        assertTrue(es.insert(new Object()));
+        assertEquals(Integer.MAX_VALUE - 100, es.getRejectedCount());
+        assertEquals(Integer.MAX_VALUE + 1L, es.countInLastMinute());
+    }
+
+    @Test
+    public void testCompactSameAsDense() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> dense = EventStat.builder().timeSource(clock).build();
+        final EventStat<Object> compact = EventStat.builder().timeSource(clock).compact(true).build();
+        final Random random = new Random(20);
+        for (int i = 0; i < 30_000; i++) {
+            clock.advance(random.nextInt(5_000));
+            final int count = random.nextInt(3) + 1;
+            assertEquals(dense.insertCountAt(count, clock.currentTimeMillis()), compact.insertCountAt(count, clock.currentTimeMillis()));
+            if (i % 101 == 0) {
+                assertEquals(dense.countInLastMinute(), compact.countInLastMinute());
+                assertEquals(dense.countInLastHour(), compact.countInLastHour());
+                assertEquals(dense.countInLastDay(), compact.countInLastDay());
+            }
+        }
+    }
+
+    @Test
+    public void testCompactAggregatesHoldFullBaseSlots() {
+        final long offsetStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(offsetStamp);
+        final EventStat<Object> es = EventStat.builder().timeSource(clock).compact(true).build();
+        for (int i = 0; i < 3; i++) { //слот агрегатов в разреженной таблице так же широк, как в плотном кольце
+            assertTrue(es.insertCountAt(Integer.MAX_VALUE, offsetStamp + i * 1000L));
+        }
+        clock.advance(10 * EventStat.MILLIS_IN_MINUTE);
+        assertEquals(3L * Integer.MAX_VALUE, es.countInLastHour());
+        assertEquals(3L * Integer.MAX_VALUE, es.countInLastDay());
+    }
+
+    @Test
+    public void testRingLengthsArePowersOfTwo() {
+        for (int retentionSlots : new int[] {1, 60, 600, 10_080, EventStat.SECONDS_IN_24_HOURS, 1 << 24}) {
+            int[] lengths = EventStat.ringLengths(retentionSlots);
+            assertTrue(lengths[0] > retentionSlots);
+            for (int length : lengths) {
+                assertEquals("Длина кольца " + length, 1, Integer.bitCount(length));
+            }
+            assertTrue(retentionSlots >> (6 * (lengths.length - 1)) <= 64);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRetentionShorterThanSlot() {
+        EventStat.builder().slotWidth(Duration.ofMinutes(1)).retention(Duration.ofSeconds(30)).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFractionalMillisecondSlot() {
+        EventStat.builder().slotWidth(Duration.ofNanos(1_500_000)).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManySlots() {
+        EventStat.builder().slotWidth(Duration.ofMillis(1)).retention(Duration.ofDays(1)).build();
+    }
 }
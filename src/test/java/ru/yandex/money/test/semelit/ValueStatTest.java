@@ -0,0 +1,155 @@
+package ru.yandex.money.test.semelit;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.Assert.*;
+
+public class ValueStatTest {
+
+    private static void assertWithinError(long expected, long actual) {
+        assertTrue("Ожидаем около " + expected + ", но " + actual,
+                actual >= expected && actual <= expected + expected / 16 + 1);
+    }
+
+    @Test
+    public void testBinsCoverLongRange() {
+        long previous = -1;
+        for (int bin = 0; bin < ValueHistogram.BINS; bin++) {
+            long highest = ValueHistogram.highestValueOf(bin);
+            assertTrue(highest > previous);
+            assertEquals(bin, ValueHistogram.binOf(highest));
+            assertEquals(bin, ValueHistogram.binOf(previous + 1));
+            previous = highest;
+        }
+        assertEquals(Long.MAX_VALUE, previous);
+    }
+
+    @Test
+    public void testPercentilesInLastMinute() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final ValueStat stat = new ValueStat(clock);
+        for (int value = 1; value <= 10_000; value++) {
+            assertTrue(stat.recordValue(value));
+        }
+        final ValueHistogram histogram = stat.histogramInLastMinute();
+        assertEquals(10_000, histogram.getTotalCount());
+        assertWithinError(5_000, histogram.getValueAtPercentile(50));
+        assertWithinError(9_900, histogram.getValueAtPercentile(99));
+        assertWithinError(10_000, histogram.getValueAtPercentile(100));
+        assertWithinError(1, histogram.getValueAtPercentile(0));
+        assertWithinError(10_000, histogram.getMaxValue());
+    }
+
+    @Test
+    public void testWindowsExpire() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final ValueStat stat = new ValueStat(clock);
+        stat.recordValue(1_000_000);
+        clock.advance(2 * EventStat.MILLIS_IN_MINUTE);
+        for (int i = 0; i < 100; i++) {
+            stat.recordValue(10);
+        }
+
+        assertEquals(100, stat.histogramInLastMinute().getTotalCount());
+        assertEquals(10, stat.histogramInLastMinute().getMaxValue());
+        assertEquals(101, stat.histogramInLastHour().getTotalCount());
+        assertWithinError(1_000_000, stat.histogramInLastHour().getMaxValue());
+
+        clock.advance(2 * EventStat.MILLIS_IN_HOUR);
+        assertEquals(0, stat.histogramInLastHour().getTotalCount());
+        assertEquals(101, stat.histogramInLastDay().getTotalCount());
+
+        clock.advance(EventStat.MILLIS_IN_24_HOURS);
+        assertEquals(0, stat.histogramInLastDay().getTotalCount());
+        assertEquals(0, stat.histogramInLastDay().getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testRingReuseAfterManyDays() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final ValueStat stat = new ValueStat(clock);
+        for (int hour = 0; hour < 72; hour++) {
+            stat.recordValue(hour);
+            clock.advance(EventStat.MILLIS_IN_HOUR);
+        }
+        //старый край суточного окна выравнивается внутрь до часа, поэтому час 48 уже не попадает
+        final ValueHistogram day = stat.histogramInLastDay();
+        assertEquals(23, day.getTotalCount());
+        assertEquals(49, day.getValueAtPercentile(0));
+        assertEquals(71, day.getMaxValue());
+    }
+
+    @Test
+    public void testLateValues() {
+        final ManualTimeSource clock = new ManualTimeSource(System.currentTimeMillis());
+        final ValueStat stat = new ValueStat(clock);
+        clock.advance(10 * EventStat.MILLIS_IN_MINUTE);
+        stat.recordValue(1);
+        assertTrue(stat.recordValueAt(2, clock.currentTimeMillis() - 5 * EventStat.MILLIS_IN_MINUTE));
+        assertFalse(stat.recordValueAt(3, clock.currentTimeMillis() - EventStat.MILLIS_IN_24_HOURS - 1000));
+        assertEquals(1, stat.histogramInLastMinute().getTotalCount());
+        assertEquals(2, stat.histogramInLastHour().getTotalCount());
+    }
+
+    @Test
+    public void testValuesStampedBeforeCreation() {
+        final long createdStamp = System.currentTimeMillis();
+        final ManualTimeSource clock = new ManualTimeSource(createdStamp);
+        final ValueStat stat = new ValueStat(clock);
+        assertTrue(stat.recordValueAt(5, createdStamp - 1));
+        assertTrue(stat.recordValueAt(7, createdStamp - 20 * EventStat.MILLIS_IN_MINUTE));
+        assertFalse(stat.recordValueAt(9, createdStamp - EventStat.MILLIS_IN_24_HOURS - 1000));
+        assertEquals(1, stat.histogramInLastMinute().getTotalCount());
+        assertEquals(2, stat.histogramAt(EventStat.SECONDS_IN_HOUR, createdStamp + EventStat.MILLIS_IN_MINUTE).getTotalCount());
+    }
+
+    @Test
+    public void testFullHistogramCellRejects() throws ReflectiveOperationException {
+        final HistogramRing ring = new HistogramRing(4);
+        assertTrue(ring.add(3, 7));
+        //доводим ячейку до предела напрямую, 2^31 вставок по одной заняли бы слишком долго
+        final Field bins = HistogramRing.class.getDeclaredField("bins");
+        bins.setAccessible(true);
+        ((AtomicLongArray) bins.get(ring)).set(3 * ValueHistogram.BINS + 7, SlotRing.pack(3, Integer.MAX_VALUE - 1));
+        assertTrue(ring.add(3, 7));
+        assertFalse(ring.add(3, 7));
+
+        final long[] counts = new long[ValueHistogram.BINS];
+        ring.addTo(3, counts);
+        assertEquals(Integer.MAX_VALUE, counts[7]);
+        assertTrue("Следующий период сбрасывает ячейку", ring.add(7, 7));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeValue() {
+        new ValueStat().recordValue(-1);
+    }
+
+    @Test
+    public void testConcurrentRecord() throws ExecutionException, InterruptedException {
+        final ValueStat stat = new ValueStat();
+        List<ForkJoinTask<Void>> taskList = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            final long value = i % 1000;
+            taskList.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    stat.recordValue(value);
+                }
+            }.fork());
+        }
+        for (ForkJoinTask<Void> task : taskList) {
+            task.get();
+        }
+        assertEquals(10_000, stat.histogramInLastDay().getTotalCount());
+        assertWithinError(999, stat.histogramInLastDay().getMaxValue());
+    }
+}